@@ -28,6 +28,12 @@ public class DadkvsClient {
 	int client_id;
 	int sequence_number;
 	int responses_needed;
+	int leader_hint; // the server that answered the last read, reads go there first
+	int read_timeout; // ms a read waits for a single server before trying another one
+	boolean follower_reads; // reads may be answered by any replica that is recent enough
+	int session_index; // highest applied index seen in a reply, replicas behind it are not read
+	boolean snapshot_reads; // the two reads of a transaction see the store as of the same instance
+	int read_instance; // instance the last read was answered at (or applied by the replica)
 	Random rnd;
 	String host;
 	int port;
@@ -47,6 +53,12 @@ public class DadkvsClient {
 		host = "localhost";
 		sequence_number = 0;
 		responses_needed = 1;
+		leader_hint = 0;
+		read_timeout = 2000;
+		follower_reads = false;
+		session_index = 0;
+		snapshot_reads = false;
+		read_instance = 0;
 		rnd = new Random();
 		targets = new String[n_servers];
 	}
@@ -54,7 +66,6 @@ public class DadkvsClient {
 	private boolean doCommit(int key1, int key1_version, int key2, int key2_version, int write_key, int write_value) {
 		sequence_number = sequence_number + 1;
 		int reqid = sequence_number * 100 + client_id;
-		boolean result = false;
 
 		DadkvsMain.CommitRequest.Builder commit_request = DadkvsMain.CommitRequest.newBuilder();
 
@@ -70,6 +81,30 @@ public class DadkvsClient {
 		System.out.println("Read1 key " + key1 + " with version " + key1_version);
 		System.out.println("Read1 key " + key2 + " with version " + key2_version);
 		System.out.println("Write key " + write_key + " with value " + write_value);
+		return sendCommit(commit_request.build());
+	}
+
+	// a transaction with any number of reads and writes, committed in a single paxos instance
+	private boolean doCommit(int[] read_keys, int[] read_versions, int[] write_keys, int[] write_values) {
+		sequence_number = sequence_number + 1;
+		int reqid = sequence_number * 100 + client_id;
+
+		DadkvsMain.CommitRequest.Builder commit_request = DadkvsMain.CommitRequest.newBuilder().setReqid(reqid);
+		System.out.println("Reqid " + reqid);
+		for (int i = 0; i < read_keys.length; i++) {
+			commit_request.addReadkeys(read_keys[i]).addReadversions(read_versions[i]);
+			System.out.println("Read key " + read_keys[i] + " with version " + read_versions[i]);
+		}
+		for (int i = 0; i < write_keys.length; i++) {
+			commit_request.addWritekeys(write_keys[i]).addWritevals(write_values[i]);
+			System.out.println("Write key " + write_keys[i] + " with value " + write_values[i]);
+		}
+		return sendCommit(commit_request.build());
+	}
+
+	private boolean sendCommit(DadkvsMain.CommitRequest commit_request) {
+		int reqid = commit_request.getReqid();
+		boolean result = false;
 
 		ArrayList<DadkvsMain.CommitReply> commit_responses = new ArrayList<DadkvsMain.CommitReply>();
 		GenericResponseCollector<DadkvsMain.CommitReply> commit_collector = new GenericResponseCollector<DadkvsMain.CommitReply>(
@@ -78,7 +113,7 @@ public class DadkvsClient {
 		for (int i = 0; i < n_servers; i++) {
 			CollectorStreamObserver<DadkvsMain.CommitReply> commit_observer = new CollectorStreamObserver<DadkvsMain.CommitReply>(
 					commit_collector);
-			async_stubs[i].committx(commit_request.build(), commit_observer);
+			async_stubs[i].committx(commit_request, commit_observer);
 		}
 		commit_collector.waitForTarget(responses_needed);
 		if (commit_responses.size() >= responses_needed) {
@@ -88,8 +123,8 @@ public class DadkvsClient {
 			result = commit_reply.getAck();
 			System.out.println("Commit result = " + result);
 			if (result) {
-				System.out.println("Committed key " + commit_request.getWritekey() + " with value "
-						+ commit_request.getWriteval());
+				session_index = Math.max(session_index, commit_reply.getApplied());
+				System.out.println("Committed reqid " + reqid);
 			} else {
 				System.out.println("Commit Failed");
 			}
@@ -98,12 +133,94 @@ public class DadkvsClient {
 		return result;
 	}
 
+	// sends the read to the leader only, following redirects; the leader answers from its store
+	// while it holds its lease. Returns null if no server gave an answer.
+	private DadkvsMain.ReadReply readFromLeader(DadkvsMain.ReadRequest read_request) {
+		int target = leader_hint;
+		for (int attempt = 0; attempt < n_servers; attempt++) {
+			ArrayList<DadkvsMain.ReadReply> read_responses = new ArrayList<DadkvsMain.ReadReply>();
+			GenericResponseCollector<DadkvsMain.ReadReply> read_collector = new GenericResponseCollector<DadkvsMain.ReadReply>(
+					read_responses, 1);
+			CollectorStreamObserver<DadkvsMain.ReadReply> read_observer = new CollectorStreamObserver<DadkvsMain.ReadReply>(
+					read_collector);
+			async_stubs[target].withDeadlineAfter(read_timeout, TimeUnit.MILLISECONDS).read(read_request, read_observer);
+			read_collector.waitForTarget(1);
+
+			if (read_responses.size() >= 1 && !read_responses.get(0).getRedirect()) {
+				leader_hint = target;
+				return read_responses.get(0);
+			}
+			int leader = read_responses.size() >= 1 ? read_responses.get(0).getLeader() : -1;
+			if (leader >= 0 && leader < n_servers && leader != target) {
+				System.out.println("read redirected from server " + target + " to leader " + leader);
+				target = leader;
+			} else {
+				target = (target + 1) % n_servers;
+			}
+		}
+		return null;
+	}
+
+	// sends the read to one random replica, which answers once it has applied the session index;
+	// returns null if it was too far behind or did not answer in time
+	private DadkvsMain.ReadReply readFromFollower(DadkvsMain.ReadRequest read_request) {
+		int target = rnd.nextInt(n_servers);
+		ArrayList<DadkvsMain.ReadReply> read_responses = new ArrayList<DadkvsMain.ReadReply>();
+		GenericResponseCollector<DadkvsMain.ReadReply> read_collector = new GenericResponseCollector<DadkvsMain.ReadReply>(
+				read_responses, 1);
+		CollectorStreamObserver<DadkvsMain.ReadReply> read_observer = new CollectorStreamObserver<DadkvsMain.ReadReply>(
+				read_collector);
+		async_stubs[target].withDeadlineAfter(read_timeout, TimeUnit.MILLISECONDS).read(read_request, read_observer);
+		read_collector.waitForTarget(1);
+
+		if (read_responses.size() >= 1 && !read_responses.get(0).getRedirect()) {
+			return read_responses.get(0);
+		}
+		if (read_responses.size() >= 1) {
+			System.out.println("server " + target + " has only applied up to " + read_responses.get(0).getApplied()
+					+ ", session needs " + session_index);
+		}
+		return null;
+	}
+
 	private VersionedValue doRead(int key) {
+		return doRead(key, 0);
+	}
+
+	// at_instance 0 reads the latest value, -1 the value as of the last instance the replica applied in
+	// order and any other the value as of that instance; the instance read at is left in read_instance.
+	// A replica that no longer keeps that version answers expired, the latest value is read instead
+	private VersionedValue doRead(int key, int at_instance) {
 		sequence_number = sequence_number + 1;
 		int reqid = sequence_number * 100 + client_id;
 
 		DadkvsMain.ReadRequest.Builder read_request = DadkvsMain.ReadRequest.newBuilder();
 		;
+		read_request.setReqid(reqid).setKey(key).setAtinstance(at_instance);
+		DadkvsMain.ReadReply leader_reply = null;
+		if (follower_reads) {
+			leader_reply = readFromFollower(read_request.setFollowerread(true).setMinapplied(session_index).build());
+			// a stale replica is not read; the leader is always recent enough
+			read_request.setFollowerread(false).setMinapplied(0);
+		}
+		if (leader_reply == null) {
+			leader_reply = readFromLeader(read_request.build());
+		}
+		if (leader_reply != null && leader_reply.getExpired()) {
+			System.out.println("version of instance " + leader_reply.getApplied() + " no longer kept, reading latest");
+			return doRead(key, 0);
+		}
+		if (leader_reply != null) {
+			session_index = Math.max(session_index, leader_reply.getApplied());
+			read_instance = leader_reply.getApplied();
+			System.out.println("Reqid = " + reqid + " id in reply = " + leader_reply.getReqid());
+			System.out.println("read key " + read_request.getKey() + " = <" + leader_reply.getValue() + ","
+					+ leader_reply.getTimestamp() + ">");
+			return new VersionedValue(leader_reply.getValue(), leader_reply.getTimestamp());
+		}
+
+		// no leader with a lease (or leases are disabled on the servers): asks everyone
+		System.out.println("no leader answered, sending read to all servers");
 		ArrayList<DadkvsMain.ReadReply> read_responses = new ArrayList<DadkvsMain.ReadReply>();
 		;
 		GenericResponseCollector<DadkvsMain.ReadReply> read_collector = new GenericResponseCollector<DadkvsMain.ReadReply>(
@@ -120,6 +237,15 @@ public class DadkvsClient {
 		if (read_responses.size() >= responses_needed) {
 			Iterator<DadkvsMain.ReadReply> read_iterator = read_responses.iterator();
 			DadkvsMain.ReadReply read_reply = read_iterator.next();
+			if (read_reply.getRedirect()) {
+				System.out.println("error reading: no leader holds a lease");
+				return null;
+			}
+			if (read_reply.getExpired()) {
+				System.out.println("version of instance " + read_reply.getApplied() + " no longer kept, reading latest");
+				return doRead(key, 0);
+			}
+			read_instance = read_reply.getApplied();
 			System.out.println("Reqid = " + reqid + " id in reply = " + read_reply.getReqid());
 			System.out.println("read key " + read_request.getKey() + " = <" + read_reply.getValue() + ","
 					+ read_reply.getTimestamp() + ">");
@@ -132,6 +258,98 @@ public class DadkvsClient {
 		}
 	}
 
+	// sends a multiread to one server; returns null if it redirected the read or did not answer in time
+	private DadkvsMain.MultiReadReply multiReadFrom(int target, DadkvsMain.MultiReadRequest read_request,
+			ArrayList<DadkvsMain.MultiReadReply> read_responses) {
+		GenericResponseCollector<DadkvsMain.MultiReadReply> read_collector = new GenericResponseCollector<DadkvsMain.MultiReadReply>(
+				read_responses, 1);
+		CollectorStreamObserver<DadkvsMain.MultiReadReply> read_observer = new CollectorStreamObserver<DadkvsMain.MultiReadReply>(
+				read_collector);
+		async_stubs[target].withDeadlineAfter(read_timeout, TimeUnit.MILLISECONDS).multiread(read_request, read_observer);
+		read_collector.waitForTarget(1);
+		if (read_responses.size() >= 1 && !read_responses.get(0).getRedirect()) {
+			return read_responses.get(0);
+		}
+		return null;
+	}
+
+	// reads every key in a single request, all of them as of the same instance (left in read_instance);
+	// the request goes where a read would (a replica, the leader, then every server), at_instance is as
+	// in doRead. Returns null if no server answered
+	private VersionedValue[] doMultiRead(int[] keys, int at_instance) {
+		sequence_number = sequence_number + 1;
+		int reqid = sequence_number * 100 + client_id;
+
+		DadkvsMain.MultiReadRequest.Builder read_request = DadkvsMain.MultiReadRequest.newBuilder();
+		read_request.setReqid(reqid).setAtinstance(at_instance);
+		for (int key : keys) {
+			read_request.addKeys(key);
+		}
+		DadkvsMain.MultiReadReply read_reply = null;
+		if (follower_reads) {
+			read_reply = multiReadFrom(rnd.nextInt(n_servers),
+					read_request.setFollowerread(true).setMinapplied(session_index).build(),
+					new ArrayList<DadkvsMain.MultiReadReply>());
+			read_request.setFollowerread(false).setMinapplied(0);
+		}
+		int target = leader_hint;
+		for (int attempt = 0; read_reply == null && attempt < n_servers; attempt++) {
+			ArrayList<DadkvsMain.MultiReadReply> read_responses = new ArrayList<DadkvsMain.MultiReadReply>();
+			read_reply = multiReadFrom(target, read_request.build(), read_responses);
+			if (read_reply != null) {
+				leader_hint = target;
+				break;
+			}
+			int leader = read_responses.size() >= 1 ? read_responses.get(0).getLeader() : -1;
+			target = leader >= 0 && leader < n_servers && leader != target ? leader : (target + 1) % n_servers;
+		}
+		if (read_reply == null) {
+			// no leader with a lease (or leases are disabled on the servers): asks everyone
+			System.out.println("no leader answered, sending multiread to all servers");
+			ArrayList<DadkvsMain.MultiReadReply> read_responses = new ArrayList<DadkvsMain.MultiReadReply>();
+			GenericResponseCollector<DadkvsMain.MultiReadReply> read_collector = new GenericResponseCollector<DadkvsMain.MultiReadReply>(
+					read_responses, n_servers);
+			for (int i = 0; i < n_servers; i++) {
+				CollectorStreamObserver<DadkvsMain.MultiReadReply> read_observer = new CollectorStreamObserver<DadkvsMain.MultiReadReply>(
+						read_collector);
+				async_stubs[i].multiread(read_request.build(), read_observer);
+			}
+			read_collector.waitForTarget(responses_needed);
+			if (read_responses.size() < responses_needed || read_responses.get(0).getRedirect()) {
+				System.out.println("error reading keys");
+				return null;
+			}
+			read_reply = read_responses.get(0);
+		}
+		if (read_reply.getExpired()) {
+			System.out.println("version of instance " + read_reply.getApplied() + " no longer kept, reading latest");
+			return doMultiRead(keys, 0);
+		}
+		session_index = Math.max(session_index, read_reply.getApplied());
+		read_instance = read_reply.getApplied();
+		System.out.println("Reqid = " + reqid + " id in reply = " + read_reply.getReqid());
+		VersionedValue[] kv_entries = new VersionedValue[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			kv_entries[i] = new VersionedValue(read_reply.getValues(i), read_reply.getTimestamps(i));
+			System.out.println("read key " + keys[i] + " = <" + read_reply.getValues(i) + ","
+					+ read_reply.getTimestamps(i) + ">");
+		}
+		return kv_entries;
+	}
+
+	// "1,2,3" as {1, 2, 3}; "-" is no keys
+	private static int[] parseKeys(String keys) {
+		if (keys.equals("-")) {
+			return new int[0];
+		}
+		String[] parts = keys.split(",");
+		int[] parsed = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			parsed[i] = Integer.parseInt(parts[i].trim());
+		}
+		return parsed;
+	}
+
 	private void doTransactions() throws Exception {
 		int counter = 0;
 		int committed = 0;
@@ -143,26 +361,19 @@ public class DadkvsClient {
 			int write_key = rnd.nextInt(key_range) + 1;
 			int write_value = rnd.nextInt(1000);
 
-			// read key 1
+			// both keys in one round trip, as of the same instance
 			int read_key1 = rnd.nextInt(key_range) + 1;
-			VersionedValue kv_entry1 = doRead(read_key1);
-			if (kv_entry1 == null) {
-				System.out.println("Panic! ..");
-				return;
-			}
-			Thread.sleep(rnd.nextInt(sleep_range) * 1000);
-
-			// read key 2
 			int read_key2 = rnd.nextInt(key_range) + 1;
-			VersionedValue kv_entry2 = doRead(read_key2);
-			if (kv_entry2 == null) {
+			VersionedValue[] kv_entries = doMultiRead(new int[] { read_key1, read_key2 }, snapshot_reads ? -1 : 0);
+			if (kv_entries == null) {
 				System.out.println("Panic! ..");
 				return;
 			}
 			Thread.sleep(rnd.nextInt(sleep_range) * 1000);
 
 			System.out.println("Commiting transaction number " + (counter + 1));
-			if (doCommit(read_key1, kv_entry1.getVersion(), read_key2, kv_entry2.getVersion(), write_key, write_value))
+			if (doCommit(read_key1, kv_entries[0].getVersion(), read_key2, kv_entries[1].getVersion(), write_key,
+					write_value))
 				committed++;
 			Thread.sleep(rnd.nextInt(sleep_range) * 1000);
 			counter++;
@@ -223,6 +434,8 @@ public class DadkvsClient {
 					System.out.printf("--range keyrange");
 					System.out.printf("--lenght looplenght");
 					System.out.printf("--sleep sleeprange");
+					System.out.printf("--reads leader|follower");
+					System.out.printf("--snapshotreads on|off");
 					System.out.printf("-i (iterative mode)");
 					cursor++;
 					break;
@@ -256,6 +469,18 @@ public class DadkvsClient {
 					else
 						sleep_range = Integer.parseInt(option_parameter);
 					break;
+				case "--reads":
+					if (option_parameter == null)
+						System.err.println("missing read mode");
+					else
+						follower_reads = option_parameter.equalsIgnoreCase("follower");
+					break;
+				case "--snapshotreads":
+					if (option_parameter == null)
+						System.err.println("missing on/off");
+					else
+						snapshot_reads = option_parameter.equalsIgnoreCase("on");
+					break;
 				case "-i":
 					interactive_mode = true;
 					break;
@@ -288,8 +513,9 @@ public class DadkvsClient {
 			switch (mainCommand) {
 				case "help":
 					System.out.println("\thelp");
-					System.out.println("\tread key");
+					System.out.println("\tread key [instance]");
 					System.out.println("\ttx read_key read_key write_key");
+					System.out.println("\ttxn read_key,read_key,... write_key,write_key,...");
 					System.out.println("\tloop");
 					System.out.println("\trange key-range");
 					System.out.println("\tlenght loop-lenght");
@@ -301,17 +527,19 @@ public class DadkvsClient {
 					if (parameter1 != null) {
 						try {
 							int key = Integer.parseInt(parameter1);
-							VersionedValue kv_entry = doRead(key);
+							// an instance reads the key as of that instance
+							int at_instance = parameter2 != null ? Integer.parseInt(parameter2) : 0;
+							VersionedValue kv_entry = doRead(key, at_instance);
 							if (kv_entry != null)
 								System.out.println("did read " + key + " with value " + kv_entry.getValue()
 										+ " and version " + kv_entry.getVersion());
 							else
 								System.out.println("failed to read " + key);
 						} catch (NumberFormatException e) {
-							System.out.println("usage: read key");
+							System.out.println("usage: read key [instance]");
 						}
 					} else
-						System.out.println("usage: read key");
+						System.out.println("usage: read key [instance]");
 					break;
 				case "tx":
 					System.out.println("tx reading key " + parameter1 + " and key " + parameter2 + " : writting key "
@@ -325,10 +553,10 @@ public class DadkvsClient {
 								System.out.println("key 0 is reserverded for reconfiguration!");
 							else {
 								int write_value = rnd.nextInt(1000);
-								VersionedValue kv_entry1 = doRead(read_key1);
-								VersionedValue kv_entry2 = doRead(read_key2);
-								if ((kv_entry1 != null) && (kv_entry2 != null))
-									doCommit(read_key1, kv_entry1.getVersion(), read_key2, kv_entry2.getVersion(),
+								VersionedValue[] kv_entries = doMultiRead(new int[] { read_key1, read_key2 },
+										snapshot_reads ? -1 : 0);
+								if (kv_entries != null)
+									doCommit(read_key1, kv_entries[0].getVersion(), read_key2, kv_entries[1].getVersion(),
 											write_key, write_value);
 								else
 									System.out.println("failed to read keys");
@@ -339,6 +567,39 @@ public class DadkvsClient {
 					} else
 						System.out.println("usage: tx read_key read_key write_key");
 					break;
+				case "txn":
+					System.out.println("txn reading keys " + parameter1 + " : writting keys " + parameter2);
+					if ((parameter1 != null) && (parameter2 != null)) {
+						try {
+							int[] read_keys = parseKeys(parameter1);
+							int[] write_keys = parseKeys(parameter2);
+							int[] write_values = new int[write_keys.length];
+							boolean reconfiguration = false;
+							for (int i = 0; i < write_keys.length; i++) {
+								reconfiguration |= write_keys[i] == 0;
+								write_values[i] = rnd.nextInt(1000);
+							}
+							if (reconfiguration || write_keys.length == 0)
+								System.out.println("txn needs write keys, and key 0 is reserverded for reconfiguration!");
+							else {
+								VersionedValue[] kv_entries = read_keys.length > 0
+										? doMultiRead(read_keys, snapshot_reads ? -1 : 0)
+										: new VersionedValue[0];
+								if (kv_entries != null) {
+									int[] read_versions = new int[read_keys.length];
+									for (int i = 0; i < read_keys.length; i++) {
+										read_versions[i] = kv_entries[i].getVersion();
+									}
+									doCommit(read_keys, read_versions, write_keys, write_values);
+								} else
+									System.out.println("failed to read keys");
+							}
+						} catch (NumberFormatException e) {
+							System.out.println("usage: txn read_key,read_key,... write_key,write_key,...");
+						}
+					} else
+						System.out.println("usage: txn read_key,read_key,... write_key,write_key,...");
+					break;
 				case "lenght":
 					System.out.println("lenght " + parameter1);
 					if (parameter1 != null) {
@@ -407,7 +668,8 @@ public class DadkvsClient {
 		System.out.println(
 				"Client key_range = " + key_range + " sleep_range = " + sleep_range + " loop_size = " + loop_size);
 
-		System.out.println("Interactive mode = " + interactive_mode);
+		System.out.println("Interactive mode = " + interactive_mode + " follower reads = " + follower_reads
+				+ " snapshot reads = " + snapshot_reads);
 
 		// set servers
 		for (int i = 0; i < n_servers; i++) {
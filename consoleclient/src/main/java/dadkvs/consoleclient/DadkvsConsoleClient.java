@@ -87,6 +87,7 @@ public class DadkvsConsoleClient {
 					System.out.println("\tleader on/off replica");
 					System.out.println("\tdebug mode replica");
 					System.out.println("\treconfig configuration");
+					System.out.println("\tstatus replica");
 					System.out.println("\texit");
 					break;
 				case "leader":
@@ -243,6 +244,41 @@ public class DadkvsConsoleClient {
 						System.out.println("usage: leader on/off replica");
 					}
 					break;
+				case "status":
+					System.out.println("status " + parameter1);
+					if (parameter1 != null) {
+						try {
+							replica = Integer.parseInt(parameter1);
+
+							ArrayList<DadkvsConsole.GetStatusReply> status_responses = new ArrayList<DadkvsConsole.GetStatusReply>();
+							GenericResponseCollector<DadkvsConsole.GetStatusReply> status_collector = new GenericResponseCollector<DadkvsConsole.GetStatusReply>(
+									status_responses, 1);
+							CollectorStreamObserver<DadkvsConsole.GetStatusReply> status_observer = new CollectorStreamObserver<DadkvsConsole.GetStatusReply>(
+									status_collector);
+							console_async_stubs[replica].getstatus(DadkvsConsole.GetStatusRequest.newBuilder().build(),
+									status_observer);
+							status_collector.waitForTarget(1);
+
+							if (status_responses.size() >= 1) {
+								DadkvsConsole.GetStatusReply status_reply = status_responses.iterator().next();
+								System.out.println("commit queue = " + status_reply.getCommitqueue()
+										+ " instances in flight = " + status_reply.getInflight());
+								System.out.println("proposer " + status_reply.getProposermode()
+										+ " queue = " + status_reply.getProposerqueue()
+										+ " max queue = " + status_reply.getProposermaxqueue()
+										+ " tasks = " + status_reply.getProposertasks());
+								System.out.println("applied instance = " + status_reply.getAppliedinstance()
+										+ " low watermark = " + status_reply.getLowwatermark()
+										+ " paxos instances kept = " + status_reply.getPaxosinstances());
+							} else
+								System.out.println("no reply received");
+						} catch (NumberFormatException e) {
+							System.out.println("usage: status replica");
+						}
+					} else {
+						System.out.println("usage: status replica");
+					}
+					break;
 				case "exit":
 					keep_going = false;
 					break;
@@ -0,0 +1,315 @@
+package dadkvs.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// write-ahead log of the acceptor state: promises and accepts are appended (and, depending on the
+// mode, forced to disk) before the acceptor replies, so a restarted acceptor keeps its word. Once
+// enough records were appended, the log is rewritten without the instances every replica has applied
+public class AcceptorLog {
+	public static final String OFF = "off";     // nothing is logged, the state only lives in memory
+	public static final String SYNC = "sync";   // every record is forced to disk on its own
+	public static final String GROUP = "group"; // a writer thread forces all the records queued meanwhile at once
+	public static final String ASYNC = "async"; // records are written but flushing is left to the operating system
+
+	public static final byte PROMISE = 1;
+	public static final byte ACCEPT = 2;
+	public static final byte PROMISE_ALL = 3; // stable leader promise for every instance >= index
+	public static final byte TRUNCATED = 4;   // the records of every instance <= index were dropped
+
+	// records appended between two compactions
+	private static final long COMPACT_RECORDS = 10000;
+	// type byte and the four integers before the reqids
+	private static final int RECORD_HEADER = 1 + 4 * 4;
+
+	public static class Record {
+		private final byte type;
+		private final int instance;
+		private final int round;
+		private final int overtake;
+		private final List<Integer> batch;
+
+		Record(byte type, int instance, int round, int overtake, List<Integer> batch) {
+			this.type = type;
+			this.instance = instance;
+			this.round = round;
+			this.overtake = overtake;
+			this.batch = batch;
+		}
+
+		public byte getType() {
+			return type;
+		}
+
+		public int getInstance() {
+			return instance;
+		}
+
+		public int getRound() {
+			return round;
+		}
+
+		public int getOvertake() {
+			return overtake;
+		}
+
+		public List<Integer> getBatch() {
+			return batch;
+		}
+	}
+
+	private static class PendingWrite {
+		final ByteBuffer record;
+		final CompletableFuture<Boolean> durable;
+
+		PendingWrite(ByteBuffer record) {
+			this.record = record;
+			this.durable = new CompletableFuture<>();
+		}
+	}
+
+	private final String mode;
+	private final Path path;
+	// replaced by the compacted log, under the monitor
+	private FileChannel channel;
+	private final LinkedBlockingQueue<PendingWrite> groupQueue;
+	private final AtomicLong records;
+	private final AtomicLong syncs;
+	// records appended when the log was last compacted
+	private long compactedAt;
+
+	public AcceptorLog(String mode, Path path) throws IOException {
+		this.mode = mode;
+		this.path = path;
+		this.records = new AtomicLong(0);
+		this.syncs = new AtomicLong(0);
+		this.groupQueue = new LinkedBlockingQueue<>();
+		if (OFF.equals(mode)) {
+			this.channel = null;
+			return;
+		}
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		if (GROUP.equals(mode)) {
+			Thread writer = new Thread(this::groupCommitLoop, "acceptor-log");
+			writer.setDaemon(true);
+			writer.start();
+		}
+	}
+
+	public CompletableFuture<Boolean> promise(int paxosInstance, int roundNumber) {
+		return append(encode(PROMISE, paxosInstance, roundNumber, 0, List.of()));
+	}
+
+	public CompletableFuture<Boolean> accept(int paxosInstance, int roundNumber, List<Integer> batch, int overtake) {
+		return append(encode(ACCEPT, paxosInstance, roundNumber, overtake, batch));
+	}
+
+	public CompletableFuture<Boolean> promiseAll(int fromInstance, int roundNumber) {
+		return append(encode(PROMISE_ALL, fromInstance, roundNumber, 0, List.of()));
+	}
+
+	// completes with true once the record is as durable as the mode promises, false if it could not be written
+	private CompletableFuture<Boolean> append(ByteBuffer record) {
+		if (this.channel == null) {
+			return CompletableFuture.completedFuture(true);
+		}
+		if (GROUP.equals(this.mode)) {
+			PendingWrite write = new PendingWrite(record);
+			this.groupQueue.add(write);
+			return write.durable;
+		}
+		try {
+			synchronized (this) {
+				writeFully(record);
+				if (SYNC.equals(this.mode)) {
+					this.channel.force(false);
+					this.syncs.incrementAndGet();
+				}
+			}
+			this.records.incrementAndGet();
+			return CompletableFuture.completedFuture(true);
+		} catch (IOException e) {
+			System.err.println("Error writing acceptor log: " + e.getMessage());
+			return CompletableFuture.completedFuture(false);
+		}
+	}
+
+	// takes whatever accumulated while the previous group was being forced and makes it durable with one fsync
+	private void groupCommitLoop() {
+		List<PendingWrite> group = new ArrayList<>();
+		while (true) {
+			try {
+				group.add(this.groupQueue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			this.groupQueue.drainTo(group);
+			boolean durable = true;
+			try {
+				synchronized (this) {
+					for (PendingWrite write : group) {
+						writeFully(write.record);
+					}
+					this.channel.force(false);
+				}
+				this.syncs.incrementAndGet();
+				this.records.addAndGet(group.size());
+			} catch (IOException e) {
+				System.err.println("Error writing acceptor log: " + e.getMessage());
+				durable = false;
+			}
+			for (PendingWrite write : group) {
+				write.durable.complete(durable);
+			}
+			group.clear();
+		}
+	}
+
+	private void writeFully(ByteBuffer record) throws IOException {
+		writeFully(this.channel, record);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer record) throws IOException {
+		while (record.hasRemaining()) {
+			channel.write(record);
+		}
+	}
+
+	// [type: 1 byte | instance | round | overtake | batch size | reqids...], integers in big endian
+	private static ByteBuffer encode(byte type, int paxosInstance, int roundNumber, int overtake, List<Integer> batch) {
+		ByteBuffer record = ByteBuffer.allocate(1 + 4 * (4 + batch.size()));
+		record.put(type).putInt(paxosInstance).putInt(roundNumber).putInt(overtake).putInt(batch.size());
+		for (int reqId : batch) {
+			record.putInt(reqId);
+		}
+		return record.flip();
+	}
+
+	// reads back every complete record; a record cut short by a crash is dropped, and the log
+	// continues right after the last complete one
+	public synchronized List<Record> replay() throws IOException {
+		List<Record> replayed = new ArrayList<>();
+		if (this.channel == null) {
+			return replayed;
+		}
+		long validLength = readRecords(replayed);
+		this.channel.truncate(validLength);
+		this.channel.position(validLength);
+		return replayed;
+	}
+
+	// the complete records at the start of the file, returns their length. A record whose type is not
+	// known or whose batch does not fit in the rest of the file was torn, it and what follows are ignored
+	private long readRecords(List<Record> read) throws IOException {
+		long length = this.channel.size();
+		long validLength = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.path)))) {
+			while (true) {
+				byte type = in.readByte();
+				int paxosInstance = in.readInt();
+				int roundNumber = in.readInt();
+				int overtake = in.readInt();
+				int size = in.readInt();
+				if (type < PROMISE || type > TRUNCATED || size < 0
+						|| 4L * size > length - validLength - RECORD_HEADER) {
+					break;
+				}
+				List<Integer> batch = new ArrayList<>(size);
+				for (int i = 0; i < size; i++) {
+					batch.add(in.readInt());
+				}
+				read.add(new Record(type, paxosInstance, roundNumber, overtake, batch));
+				validLength += RECORD_HEADER + 4L * size;
+			}
+		} catch (EOFException e) {
+			// end of the log
+		}
+		return validLength;
+	}
+
+	// rewrites the log without the promises and accepts of the instances <= watermark, keeping the last
+	// stable leader promise, once enough records were appended since the last time. The new log is
+	// written and forced aside and then moved over the old one, appends wait meanwhile
+	public void compact(int watermark) {
+		if (this.channel == null || this.records.get() - this.compactedAt < COMPACT_RECORDS) {
+			return;
+		}
+		synchronized (this) {
+			if (this.records.get() - this.compactedAt < COMPACT_RECORDS) {
+				return;
+			}
+			this.compactedAt = this.records.get();
+			Path partial = Path.of(this.path + ".tmp");
+			FileChannel compacted = null;
+			try {
+				List<Record> current = new ArrayList<>();
+				readRecords(current);
+				compacted = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+						StandardOpenOption.READ, StandardOpenOption.WRITE);
+				writeFully(compacted, encode(TRUNCATED, watermark, 0, 0, List.of()));
+				// the stable leader promise goes first: it was made before every record of its round that is
+				// kept, and replayed after them it would find their instances already promised that round
+				Record promiseAll = null;
+				for (Record record : current) {
+					if (record.getType() == PROMISE_ALL) {
+						promiseAll = record;
+					}
+				}
+				if (promiseAll != null) {
+					writeFully(compacted, encode(PROMISE_ALL, promiseAll.getInstance(), promiseAll.getRound(), 0, List.of()));
+				}
+				for (Record record : current) {
+					if ((record.getType() == PROMISE || record.getType() == ACCEPT) && record.getInstance() > watermark) {
+						writeFully(compacted, encode(record.getType(), record.getInstance(), record.getRound(),
+								record.getOvertake(), record.getBatch()));
+					}
+				}
+				compacted.force(false);
+				// the open channel follows the file it was opened on, appends go on in the compacted log
+				Files.move(partial, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				System.err.println("Error compacting acceptor log: " + e.getMessage());
+				try {
+					if (compacted != null) {
+						compacted.close();
+					}
+					Files.deleteIfExists(partial);
+				} catch (IOException ignored) {
+				}
+				return;
+			}
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				System.err.println("Error closing acceptor log: " + e.getMessage());
+			}
+			this.channel = compacted;
+		}
+	}
+
+	public String getMode() {
+		return this.mode;
+	}
+
+	public long getRecords() {
+		return this.records.get();
+	}
+
+	public long getSyncs() {
+		return this.syncs.get();
+	}
+}
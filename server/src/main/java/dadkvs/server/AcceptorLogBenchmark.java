@@ -0,0 +1,54 @@
+package dadkvs.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+// compares the throughput of the acceptor log durability modes: each thread plays an acceptor
+// handling one instance at a time, so it waits for its record to be durable before the next one
+public class AcceptorLogBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int records_per_thread = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		Path directory = args.length > 2 ? Path.of(args[2]) : Files.createTempDirectory("acceptor-log");
+
+		System.out.println("threads = " + threads + " records per thread = " + records_per_thread
+				+ " directory = " + directory);
+		for (String mode : new String[] { AcceptorLog.SYNC, AcceptorLog.GROUP, AcceptorLog.ASYNC }) {
+			run(mode, directory, threads, records_per_thread);
+		}
+	}
+
+	private static void run(String mode, Path directory, int threads, int records_per_thread) throws IOException,
+			InterruptedException {
+		Path path = directory.resolve("benchmark-" + mode + ".log");
+		Files.deleteIfExists(path);
+		AcceptorLog log = new AcceptorLog(mode, path);
+		List<Integer> batch = List.of(1, 2, 3, 4);
+
+		Thread[] workers = new Thread[threads];
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			int first_instance = t * records_per_thread;
+			workers[t] = new Thread(() -> {
+				for (int i = 0; i < records_per_thread; i++) {
+					log.accept(first_instance + i, 0, batch, 0).join();
+				}
+			});
+			workers[t].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		long total = (long) threads * records_per_thread;
+		double seconds = elapsed / 1e9;
+		System.out.printf("%-6s %10.0f records/s %8.3f ms elapsed %8d fsyncs %8.1f records/fsync%n", mode,
+				total / seconds, elapsed / 1e6, log.getSyncs(),
+				log.getSyncs() == 0 ? 0.0 : (double) log.getRecords() / log.getSyncs());
+		Files.deleteIfExists(path);
+	}
+}
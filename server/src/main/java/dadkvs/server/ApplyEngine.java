@@ -0,0 +1,122 @@
+package dadkvs.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// commits a run of decided transactions with the outcome of committing them one after another in
+// their order. Every transaction is put in a wave one after the last wave holding an earlier
+// transaction it conflicts with (one writes a key the other reads or writes); the transactions of a
+// wave touch no key another one writes, so each wave runs on the worker threads in any interleaving
+// and the waves run in order. The waves only depend on the run itself, every replica builds the same
+public class ApplyEngine {
+	private final int threads;
+	// null with a single thread, the caller then commits everything itself in order
+	private final ExecutorService workers;
+
+	public ApplyEngine(int threads) {
+		this.threads = Math.max(1, threads);
+		if (this.threads > 1) {
+			this.workers = Executors.newFixedThreadPool(this.threads, task -> {
+				Thread worker = new Thread(task, "apply-worker");
+				worker.setDaemon(true);
+				return worker;
+			});
+		} else {
+			this.workers = null;
+		}
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	// the commit outcome of every transaction, in the order of the run
+	public boolean[] apply(List<TransactionRecord> run, KeyValueStore store) {
+		boolean[] outcomes = new boolean[run.size()];
+		if (this.workers == null || run.size() < 2) {
+			for (int t = 0; t < run.size(); t++) {
+				outcomes[t] = store.commit(run.get(t));
+			}
+			return outcomes;
+		}
+		for (List<Integer> wave : schedule(run)) {
+			runWave(wave, run, store, outcomes);
+		}
+		return outcomes;
+	}
+
+	// the waves, each one the indexes of its transactions in run order
+	static List<List<Integer>> schedule(List<TransactionRecord> run) {
+		// wave of the last transaction writing, and of the last one reading, every key seen so far
+		Map<Integer, Integer> lastWrite = new HashMap<>();
+		Map<Integer, Integer> lastRead = new HashMap<>();
+		List<List<Integer>> waves = new ArrayList<>();
+		for (int t = 0; t < run.size(); t++) {
+			TransactionRecord tr = run.get(t);
+			int wave = -1;
+			for (int key : tr.getReadKeys()) {
+				wave = Math.max(wave, lastWrite.getOrDefault(key, -1));
+			}
+			for (int key : tr.getWriteKeys()) {
+				wave = Math.max(wave, Math.max(lastWrite.getOrDefault(key, -1), lastRead.getOrDefault(key, -1)));
+			}
+			wave++;
+			for (int key : tr.getWriteKeys()) {
+				lastWrite.put(key, wave);
+			}
+			for (int key : tr.getReadKeys()) {
+				lastRead.merge(key, wave, Math::max);
+			}
+			if (wave == waves.size()) {
+				waves.add(new ArrayList<>());
+			}
+			waves.get(wave).add(t);
+		}
+		return waves;
+	}
+
+	// splits the wave in one slice per thread; the caller waits for all of them
+	private void runWave(List<Integer> wave, List<TransactionRecord> run, KeyValueStore store, boolean[] outcomes) {
+		if (wave.size() == 1) {
+			int t = wave.get(0);
+			outcomes[t] = store.commit(run.get(t));
+			return;
+		}
+		int slices = Math.min(this.threads, wave.size());
+		List<Future<Void>> running = new ArrayList<>(slices);
+		for (int slice = 0; slice < slices; slice++) {
+			int first = slice;
+			running.add(this.workers.submit(() -> {
+				for (int w = first; w < wave.size(); w += slices) {
+					int t = wave.get(w);
+					outcomes[t] = store.commit(run.get(t));
+				}
+				return null;
+			}));
+		}
+		// a wave is never left half applied, an interrupt is only passed on once it is done. get() also
+		// makes the outcomes written by the workers visible here
+		boolean interrupted = false;
+		for (Future<Void> done : running) {
+			while (true) {
+				try {
+					done.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					throw new IllegalStateException("error applying a batch", e.getCause());
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package dadkvs.server;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// applies the same decided batches with one apply thread and with several, checks that both stores
+// and all the outcomes end up the same, and reports the transactions applied per second. The keys are
+// drawn from a range, a small range makes most transactions of a batch conflict. The debug output of
+// the commits is discarded while it runs
+public class ApplyEngineBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int batch_size = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		int batches = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+		int keys = args.length > 3 ? Integer.parseInt(args[3]) : 100000;
+
+		System.out.println("threads = " + threads + " batch size = " + batch_size + " batches = " + batches
+				+ " keys = " + keys);
+		List<List<TransactionRecord>> log = decidedLog(batch_size, batches, keys);
+
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		// the first round only warms up the JIT
+		run(new ApplyEngine(1), log, keys);
+		run(new ApplyEngine(threads), log, keys);
+		long start = System.nanoTime();
+		Result serial = run(new ApplyEngine(1), log, keys);
+		long serial_time = System.nanoTime() - start;
+		start = System.nanoTime();
+		Result parallel = run(new ApplyEngine(threads), log, keys);
+		long parallel_time = System.nanoTime() - start;
+		System.setOut(out);
+
+		long transactions = (long) batch_size * batches;
+		System.out.printf("%-10s %12.0f tx/s, %d committed%n", "serial", transactions / (serial_time / 1e9),
+				serial.committed);
+		System.out.printf("%-10s %12.0f tx/s, %d committed, %.1f waves per batch%n", "parallel",
+				transactions / (parallel_time / 1e9), parallel.committed, (double) parallel.waves / batches);
+		System.out.println("same result: " + (Arrays.equals(serial.entries, parallel.entries)
+				&& Arrays.equals(serial.outcomes, parallel.outcomes)));
+	}
+
+	private static class Result {
+		long[] entries;
+		boolean[] outcomes;
+		int committed;
+		long waves;
+	}
+
+	// transactions that read two keys at the version a client would have seen some instances back,
+	// so part of them fail validation, as in a live system
+	private static List<List<TransactionRecord>> decidedLog(int batch_size, int batches, int keys) {
+		Random rnd = new Random(42);
+		int[] versions = new int[keys];
+		List<List<TransactionRecord>> log = new ArrayList<>(batches);
+		for (int instance = 1; instance <= batches; instance++) {
+			List<TransactionRecord> batch = new ArrayList<>(batch_size);
+			for (int t = 0; t < batch_size; t++) {
+				int key1 = 1 + rnd.nextInt(keys - 1);
+				int key2 = 1 + rnd.nextInt(keys - 1);
+				int write_key = 1 + rnd.nextInt(keys - 1);
+				batch.add(new TransactionRecord(key1, versions[key1], key2, versions[key2], write_key,
+						rnd.nextInt(1000), instance));
+				if (rnd.nextInt(4) != 0) {
+					versions[write_key] = instance;
+				}
+			}
+			log.add(batch);
+		}
+		return log;
+	}
+
+	private static Result run(ApplyEngine engine, List<List<TransactionRecord>> log, int keys) {
+		KeyValueStore store = new KeyValueStore(keys);
+		Result result = new Result();
+		List<Boolean> outcomes = new ArrayList<>();
+		for (List<TransactionRecord> batch : log) {
+			for (boolean outcome : engine.apply(batch, store)) {
+				outcomes.add(outcome);
+				result.committed += outcome ? 1 : 0;
+			}
+			result.waves += ApplyEngine.schedule(batch).size();
+		}
+		result.entries = new long[keys];
+		for (int k = 0; k < keys; k++) {
+			result.entries[k] = store.readPacked(k);
+		}
+		result.outcomes = new boolean[outcomes.size()];
+		for (int i = 0; i < outcomes.size(); i++) {
+			result.outcomes[i] = outcomes.get(i);
+		}
+		return result;
+	}
+}
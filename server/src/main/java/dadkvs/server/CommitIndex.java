@@ -0,0 +1,75 @@
+package dadkvs.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// the requests applied by this replica, by reqid: [reqid -> (instance, outcome)], packed in a long as
+// instance << 1 | committed. Only the most recent ones are kept, a reqid older than the retention
+// is assumed not to be decided again
+public class CommitIndex {
+	private final LinkedHashMap<Integer, Long> applied;
+	// records made since the index was created, checkpoints use it to tell which ones are new
+	private long recorded;
+
+	public CommitIndex(int retention) {
+		// insertion order is the apply order, so the eldest entry is the oldest request
+		this.applied = new LinkedHashMap<Integer, Long>() {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Long> eldest) {
+				return size() > retention;
+			}
+		};
+	}
+
+	public void record(int reqId, int instance, boolean committed) {
+		this.applied.put(reqId, ((long) instance << 1) | (committed ? 1 : 0));
+		this.recorded++;
+	}
+
+	public boolean contains(int reqId) {
+		return this.applied.containsKey(reqId);
+	}
+
+	// instance the request was applied in, -1 if it is not (or no longer) known
+	public int getInstance(int reqId) {
+		Long entry = this.applied.get(reqId);
+		return entry == null ? -1 : (int) (entry >> 1);
+	}
+
+	public boolean isCommitted(int reqId) {
+		Long entry = this.applied.get(reqId);
+		return entry != null && (entry & 1) == 1;
+	}
+
+	public int size() {
+		return this.applied.size();
+	}
+
+	public long getRecorded() {
+		return this.recorded;
+	}
+
+	public void clear() {
+		this.applied.clear();
+	}
+
+	// copies the reqids and outcomes out in apply order, the arrays must hold size() entries
+	public void copyTo(int[] reqIds, boolean[] outcomes) {
+		copyLastTo(this.applied.size(), reqIds, outcomes);
+	}
+
+	// the same for the last n entries only, n at most size()
+	public void copyLastTo(int n, int[] reqIds, boolean[] outcomes) {
+		int skip = this.applied.size() - n;
+		int i = 0;
+		for (Map.Entry<Integer, Long> entry : this.applied.entrySet()) {
+			if (skip > 0) {
+				skip--;
+				continue;
+			}
+			reqIds[i] = entry.getKey();
+			outcomes[i] = (entry.getValue() & 1) == 1;
+			i++;
+		}
+	}
+}
@@ -8,9 +8,11 @@ import io.grpc.stub.StreamObserver;
 public class DadkvsConsoleServiceImpl extends DadkvsConsoleServiceGrpc.DadkvsConsoleServiceImplBase {
 
 	DadkvsServerState server_state;
+	DadkvsMainServiceImpl main_service;
 
-	public DadkvsConsoleServiceImpl(DadkvsServerState state) {
+	public DadkvsConsoleServiceImpl(DadkvsServerState state, DadkvsMainServiceImpl main) {
 		this.server_state = state;
+		this.main_service = main;
 	}
 
 	@Override
@@ -75,4 +77,25 @@ public class DadkvsConsoleServiceImpl extends DadkvsConsoleServiceGrpc.DadkvsCon
 		responseObserver.onNext(response);
 		responseObserver.onCompleted();
 	}
+
+	@Override
+	public void getstatus(DadkvsConsole.GetStatusRequest request,
+			StreamObserver<DadkvsConsole.GetStatusReply> responseObserver) {
+		ProposerExecutor proposer = this.server_state.getProposerExecutor();
+
+		DadkvsConsole.GetStatusReply response = DadkvsConsole.GetStatusReply.newBuilder()
+				.setCommitqueue(this.main_service.getCommitQueueDepth())
+				.setInflight(this.main_service.getPaxosInFlight())
+				.setProposermode(proposer.getMode())
+				.setProposerqueue(proposer.getQueueDepth())
+				.setProposermaxqueue(proposer.getMaxQueueDepth())
+				.setProposertasks(proposer.getExecutedTasks())
+				.setAppliedinstance(this.server_state.getExpectedInstanceNumber() - 1)
+				.setLowwatermark(this.server_state.getLowWatermark())
+				.setPaxosinstances(this.server_state.getPaxosInstanceCount())
+				.build();
+
+		responseObserver.onNext(response);
+		responseObserver.onCompleted();
+	}
 }
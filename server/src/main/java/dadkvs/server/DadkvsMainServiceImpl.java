@@ -1,7 +1,12 @@
 package dadkvs.server;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import dadkvs.DadkvsMain;
 import dadkvs.DadkvsMainServiceGrpc;
@@ -21,7 +26,8 @@ public class DadkvsMainServiceImpl extends DadkvsMainServiceGrpc.DadkvsMainServi
 	private String host;
 	private String[] targets;
 
-	private boolean isPaxosRunning;
+	private int paxosInFlight; // paxos instances currently being run by this leader
+	private boolean batchFlushScheduled; // a small batch is waiting for the batch delay to expire
 	private Queue<PendingCommit> commitQueue;
 
 	public DadkvsMainServiceImpl(DadkvsServerState state) {
@@ -43,7 +49,8 @@ public class DadkvsMainServiceImpl extends DadkvsMainServiceGrpc.DadkvsMainServi
 		}
 
 		this.commitQueue = new LinkedList<>();
-		this.isPaxosRunning = false;
+		this.paxosInFlight = 0;
+		this.batchFlushScheduled = false;
 	}
 
 	@Override
@@ -59,17 +66,140 @@ public class DadkvsMainServiceImpl extends DadkvsMainServiceGrpc.DadkvsMainServi
 		ctx.run(() -> {
 			int reqid = request.getReqid();
 			int key = request.getKey();
-			VersionedValue vv = this.server_state.store.read(key);
+			if (request.getAtinstance() != 0) {
+				readAtInstance(reqid, key, request.getAtinstance(), responseObserver);
+				return;
+			}
+			if (request.getFollowerread()) {
+				// any replica answers once it has applied what the client already saw, so the client
+				// never reads older state than its own writes and previous reads
+				if (!this.server_state.waitForApplied(request.getMinapplied(), this.server_state.getFollowerReadWait())) {
+					redirectRead(reqid, responseObserver);
+					return;
+				}
+			} else if (this.server_state.isLeaseEnabled() && !this.server_state.waitForLeaseRead()) {
+				// with leases, only the leader holding one answers, from its own store and without
+				// contacting anyone; the others point the client to it
+				redirectRead(reqid, responseObserver);
+				return;
+			}
+			long slot = this.server_state.store.readPacked(key);
+			int value = KeyValueStore.valueOf(slot);
+			int version = KeyValueStore.versionOf(slot);
+			// taken after the read, so it covers every instance the value may come from
+			int applied = this.server_state.getAppliedInstance();
 
 			DadkvsMain.ReadReply response = DadkvsMain.ReadReply.newBuilder()
-					.setReqid(reqid).setValue(vv.getValue()).setTimestamp(vv.getVersion()).build();
+					.setReqid(reqid).setValue(value).setTimestamp(version).setApplied(applied).build();
 			DadkvsServer.debug(DadkvsMainServiceImpl.class.getSimpleName(),
-					"Sending read reply with value %d and timestamp %d\n\n", vv.getValue(), vv.getVersion());
+					"Sending read reply with value %d and timestamp %d\n\n", value, version);
 			responseObserver.onNext(response);
 			responseObserver.onCompleted();
 		});
 	}
 
+	// the store as it was after an instance is the same on every replica, so any replica that has applied
+	// the instance answers, without the lease; one that has not sends the client to the leader
+	private void readAtInstance(int reqid, int key, int instance, StreamObserver<DadkvsMain.ReadReply> responseObserver) {
+		KeyValueStore store = this.server_state.store;
+		if (instance < 0) {
+			instance = this.server_state.getExpectedInstanceNumber() - 1;
+		} else if (!this.server_state.waitForApplied(instance, this.server_state.getFollowerReadWait())) {
+			redirectRead(reqid, responseObserver);
+			return;
+		}
+		long slot = store.readAt(key, instance);
+		DadkvsMain.ReadReply.Builder response = DadkvsMain.ReadReply.newBuilder().setReqid(reqid).setApplied(instance);
+		if (store.isReadableAt(instance)) {
+			response.setValue(KeyValueStore.valueOf(slot)).setTimestamp(KeyValueStore.versionOf(slot));
+		} else {
+			response.setExpired(true);
+		}
+		DadkvsServer.debug(DadkvsMainServiceImpl.class.getSimpleName(),
+				"Sending read reply at instance %d with value %d and timestamp %d (expired %b)\n\n", instance,
+				response.getValue(), response.getTimestamp(), response.getExpired());
+		responseObserver.onNext(response.build());
+		responseObserver.onCompleted();
+	}
+
+	// the keys are read with the same rules as a single read, but all of them as of one instance: the one
+	// asked for (which keeps every version), or else the store with no instance applied in between
+	@Override
+	public void multiread(DadkvsMain.MultiReadRequest request, StreamObserver<DadkvsMain.MultiReadReply> responseObserver) {
+		this.server_state.getFreezeMode().waitUntilUnfreezed();
+		this.server_state.getSlowMode().waitUntilUnslowed();
+
+		DadkvsServer.debug(DadkvsMainServiceImpl.class.getSimpleName(),
+				"Receiving multiread request with reqid %d and keys %s\n", request.getReqid(), request.getKeysList());
+
+		Context ctx = Context.current().fork();
+		ctx.run(() -> {
+			int reqid = request.getReqid();
+			KeyValueStore store = this.server_state.store;
+			long[] slots = new long[request.getKeysCount()];
+			DadkvsMain.MultiReadReply.Builder response = DadkvsMain.MultiReadReply.newBuilder().setReqid(reqid);
+			int instance = request.getAtinstance();
+			if (instance != 0) {
+				if (instance < 0) {
+					instance = this.server_state.getExpectedInstanceNumber() - 1;
+				} else if (!this.server_state.waitForApplied(instance, this.server_state.getFollowerReadWait())) {
+					redirectMultiRead(reqid, responseObserver);
+					return;
+				}
+				store.readKeysAt(request.getKeysList(), instance, slots);
+				if (!store.isReadableAt(instance)) {
+					response.setApplied(instance).setExpired(true);
+					responseObserver.onNext(response.build());
+					responseObserver.onCompleted();
+					return;
+				}
+			} else {
+				if (request.getFollowerread()) {
+					if (!this.server_state.waitForApplied(request.getMinapplied(),
+							this.server_state.getFollowerReadWait())) {
+						redirectMultiRead(reqid, responseObserver);
+						return;
+					}
+				} else if (this.server_state.isLeaseEnabled() && !this.server_state.waitForLeaseRead()) {
+					redirectMultiRead(reqid, responseObserver);
+					return;
+				}
+				instance = this.server_state.readKeys(request.getKeysList(), slots);
+			}
+			response.setApplied(instance);
+			for (long slot : slots) {
+				response.addValues(KeyValueStore.valueOf(slot)).addTimestamps(KeyValueStore.versionOf(slot));
+			}
+			DadkvsServer.debug(DadkvsMainServiceImpl.class.getSimpleName(),
+					"Sending multiread reply at instance %d with values %s and timestamps %s\n\n", instance,
+					response.getValuesList(), response.getTimestampsList());
+			responseObserver.onNext(response.build());
+			responseObserver.onCompleted();
+		});
+	}
+
+	private void redirectMultiRead(int reqid, StreamObserver<DadkvsMain.MultiReadReply> responseObserver) {
+		int leader = this.server_state.getLeaseHolder();
+		DadkvsServer.debug(DadkvsMainServiceImpl.class.getSimpleName(),
+				"Redirecting multiread request with reqid %d to leader %d\n", reqid, leader);
+		DadkvsMain.MultiReadReply response = DadkvsMain.MultiReadReply.newBuilder()
+				.setReqid(reqid).setRedirect(true).setLeader(leader == this.server_state.my_id ? -1 : leader)
+				.setApplied(this.server_state.getAppliedInstance()).build();
+		responseObserver.onNext(response);
+		responseObserver.onCompleted();
+	}
+
+	private void redirectRead(int reqid, StreamObserver<DadkvsMain.ReadReply> responseObserver) {
+		int leader = this.server_state.getLeaseHolder();
+		DadkvsServer.debug(DadkvsMainServiceImpl.class.getSimpleName(),
+				"Redirecting read request with reqid %d to leader %d\n", reqid, leader);
+		DadkvsMain.ReadReply response = DadkvsMain.ReadReply.newBuilder()
+				.setReqid(reqid).setRedirect(true).setLeader(leader == this.server_state.my_id ? -1 : leader)
+				.setApplied(this.server_state.getAppliedInstance()).build();
+		responseObserver.onNext(response);
+		responseObserver.onCompleted();
+	}
+
 	@Override
 	public void committx(DadkvsMain.CommitRequest request, StreamObserver<DadkvsMain.CommitReply> responseObserver) {
 
@@ -77,54 +207,46 @@ public class DadkvsMainServiceImpl extends DadkvsMainServiceGrpc.DadkvsMainServi
 		this.server_state.getSlowMode().waitUntilUnslowed();
 
 		// for debug purposes
+		TransactionRecord tr = TransactionRecord.of(request, -1);
 		DadkvsServer.debug(DadkvsMainServiceImpl.class.getSimpleName(),
-				"Receiving commit request with reqid %d to read keys %d and %d and write key %d with value %d\n",
-				request.getReqid(), request.getKey1(), request.getKey2(), request.getWritekey(), request.getWriteval());
+				"Receiving commit request with reqid %d to read keys %s and write keys %s with values %s\n",
+				request.getReqid(), Arrays.toString(tr.getReadKeys()), Arrays.toString(tr.getWriteKeys()),
+				Arrays.toString(tr.getWriteValues()));
 
 		Context ctx = Context.current().fork();
 		ctx.run(() -> {
+			if (!TransactionRecord.isWellFormed(request)) {
+				// a read without its version or a write without its value could not be applied
+				DadkvsMain.CommitReply response = DadkvsMain.CommitReply.newBuilder()
+						.setReqid(request.getReqid()).setAck(false).build();
+				responseObserver.onNext(response);
+				responseObserver.onCompleted();
+				return;
+			}
 
 			if (server_state.isLeader()) {
-				synchronized(this) {
-					if (isPaxosRunning()) {
-						DadkvsServer.debug(DadkvsMainServiceImpl.class.getSimpleName(), "Paxos is running, adding request %d to queue\n", request.getReqid());
-						commitQueue.add(new PendingCommit(request, responseObserver));
-					} else {
-						// starts new paxos instance
-						isPaxosRunning = true;
-						startPaxosForRequest(request, responseObserver);
-					}
-				}
+				submitCommit(request, responseObserver);
 			} else {
 				int reqId = request.getReqid();
 				DadkvsServer.debug(DadkvsMainServiceImpl.class.getSimpleName(), "I am not the leader\n");
 				this.server_state.addToPendingCommits(reqId, request);
 
-				boolean result = this.server_state.waitForPaxosInstanceToFinish(reqId);
-
-				if (!result) {
-					// Became leader, need to start Paxos for this request
-					synchronized (this) {
-						if (isPaxosRunning()) {
-							DadkvsServer.debug(DadkvsMainServiceImpl.class.getSimpleName(),
-									"Paxos is running, adding request %d to queue\n", request.getReqid());
-							commitQueue.add(new PendingCommit(request, responseObserver));
-						} else {
-							isPaxosRunning = true;
-							startPaxosForRequest(request, responseObserver);
-						}
+				// no thread waits for the request meanwhile, the reply is sent once it is applied; the
+				// completion happens while applying, so the reply goes out on another thread
+				this.server_state.whenApplied(reqId).thenAcceptAsync(instance -> {
+					if (instance < 0) {
+						// Became leader, need to start Paxos for this request
+						submitCommit(request, responseObserver);
+						return;
 					}
-					return;
-				}
-
-				DadkvsServer.debug(DadkvsMainServiceImpl.class.getSimpleName(), "Total order List: %s\n", this.server_state.getTotalOrderList());
-				DadkvsServer.debug(DadkvsMainServiceImpl.class.getSimpleName(), "RESULT OF PAXOS: %b\n", result);
-				DadkvsServer.debug(DadkvsMainServiceImpl.class.getSimpleName(), "Sending commit reply for reqid %d\n\n",
-						reqId);
-				DadkvsMain.CommitReply response = DadkvsMain.CommitReply.newBuilder()
-						.setReqid(reqId).setAck(result).build();
-				responseObserver.onNext(response);
-				responseObserver.onCompleted();
+					DadkvsServer.debug(DadkvsMainServiceImpl.class.getSimpleName(),
+							"Sending commit reply for reqid %d applied in instance %d\n\n", reqId, instance);
+					// a replica that applied the request's instance reflects it
+					DadkvsMain.CommitReply response = DadkvsMain.CommitReply.newBuilder()
+							.setReqid(reqId).setAck(true).setApplied(instance).build();
+					responseObserver.onNext(response);
+					responseObserver.onCompleted();
+				});
 			}
 		});
 	}
@@ -133,43 +255,100 @@ public class DadkvsMainServiceImpl extends DadkvsMainServiceGrpc.DadkvsMainServi
 	//	this.timestamp++;
 	//}
 
-	private synchronized boolean isPaxosRunning() {
-		return this.isPaxosRunning;
+	private synchronized void submitCommit(DadkvsMain.CommitRequest request, StreamObserver<DadkvsMain.CommitReply> responseObserver) {
+		if (commitQueue.size() >= server_state.getCommitQueueCapacity()) {
+			// bounded queue: sheds load instead of letting the backlog grow without limit
+			DadkvsServer.debug(DadkvsMainServiceImpl.class.getSimpleName(),
+					"Commit queue is full (%d requests), rejecting request %d\n", commitQueue.size(), request.getReqid());
+			DadkvsMain.CommitReply response = DadkvsMain.CommitReply.newBuilder()
+					.setReqid(request.getReqid()).setAck(false).build();
+			responseObserver.onNext(response);
+			responseObserver.onCompleted();
+			return;
+		}
+		DadkvsServer.debug(DadkvsMainServiceImpl.class.getSimpleName(),
+				"Adding request %d to queue (%d instances running)\n", request.getReqid(), paxosInFlight);
+		commitQueue.add(new PendingCommit(request, responseObserver));
+		startBatches(false);
+	}
+
+	// starts new batches while there are free slots in the pipeline; a batch smaller than the
+	// batch size waits up to the batch delay for more commits, unless it is being flushed
+	private synchronized void startBatches(boolean flush) {
+		int batchSize = server_state.getBatchSize();
+		while (paxosInFlight < server_state.getPipelineWindow() && !commitQueue.isEmpty()) {
+			if (!flush && commitQueue.size() < batchSize && server_state.getBatchDelay() > 0) {
+				scheduleBatchFlush();
+				return;
+			}
+			List<PendingCommit> batch = new ArrayList<>();
+			while (batch.size() < batchSize && !commitQueue.isEmpty()) {
+				batch.add(commitQueue.poll());
+			}
+			paxosInFlight++;
+			// allows main to receive reads and add new commits to the queue
+			server_state.getProposerExecutor().execute(() -> processCommitBatch(batch));
+		}
 	}
 
-	private void startPaxosForRequest(DadkvsMain.CommitRequest request, StreamObserver<DadkvsMain.CommitReply> responseObserver) {
-		// allows main to receive reads and add new commits to the queue
-		new Thread(() -> {
-			processCommitRequest(request, responseObserver);
-		}).start();
+	private synchronized void scheduleBatchFlush() {
+		if (batchFlushScheduled) {
+			return;
+		}
+		batchFlushScheduled = true;
+		CompletableFuture.delayedExecutor(server_state.getBatchDelay(), TimeUnit.MILLISECONDS,
+				server_state.getProposerExecutor()).execute(() -> {
+					synchronized (this) {
+						batchFlushScheduled = false;
+						startBatches(true);
+					}
+				});
 	}
 
-	private void processCommitRequest(DadkvsMain.CommitRequest request, StreamObserver<DadkvsMain.CommitReply> responseObserver) {
-		boolean result;
-		int reqId = request.getReqid();
+	private void processCommitBatch(List<PendingCommit> batch) {
+		List<Integer> reqIds = new ArrayList<>();
 
-		this.server_state.addToPendingCommits(reqId, request);
+		for (PendingCommit commit : batch) {
+			int reqId = commit.request.getReqid();
+			this.server_state.addToPendingCommits(reqId, commit.request);
+			reqIds.add(reqId);
+		}
 		//this.server_state.setPaxosCounter(this.timestamp);
-		
-		result = this.server_state.runPaxos(request, true);
-		DadkvsServer.debug(DadkvsMainServiceImpl.class.getSimpleName(), "Paxos number %d finished for request %d\n", server_state.getPaxosCounter(), reqId);
-		DadkvsMain.CommitReply response = DadkvsMain.CommitReply.newBuilder()
-				.setReqid(reqId).setAck(result).build();
-		responseObserver.onNext(response);
-		responseObserver.onCompleted();
-	
-		// processes next commit in the queue -> new paxos
-		synchronized (this) {
-			isPaxosRunning = false;
-			if (!commitQueue.isEmpty()) {
-				PendingCommit nextCommit = commitQueue.poll();
-				isPaxosRunning = true;
-				startPaxosForRequest(nextCommit.request, nextCommit.responseObserver);
-			}
+
+		if (reqIds.isEmpty()) {
+			finishBatch();
+			return;
 		}
+		// replies are sent when the instance is decided; no thread waits for it meanwhile
+		this.server_state.runPaxos(reqIds).whenComplete((decidedInstance, error) -> {
+			boolean ack = error == null && decidedInstance > 0;
+			if (error != null) {
+				DadkvsServer.debug(DadkvsMainServiceImpl.class.getSimpleName(), "Paxos failed for batch %s: %s\n",
+						reqIds, error.getMessage());
+			}
+			DadkvsServer.debug(DadkvsMainServiceImpl.class.getSimpleName(), "Paxos finished for batch %s\n", reqIds);
+			for (PendingCommit commit : batch) {
+				DadkvsMain.CommitReply response = DadkvsMain.CommitReply.newBuilder()
+						.setReqid(commit.request.getReqid()).setAck(ack).setApplied(ack ? decidedInstance : 0).build();
+				commit.responseObserver.onNext(response);
+				commit.responseObserver.onCompleted();
+			}
+			finishBatch();
+		});
 	}
-	
-	
 
+	// frees a slot in the pipeline and fills it with the next queued commits -> new paxos
+	private synchronized void finishBatch() {
+		paxosInFlight--;
+		startBatches(false);
+	}
+
+	public synchronized int getCommitQueueDepth() {
+		return commitQueue.size();
+	}
+
+	public synchronized int getPaxosInFlight() {
+		return paxosInFlight;
+	}
 
 }
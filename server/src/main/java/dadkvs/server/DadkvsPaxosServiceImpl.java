@@ -1,12 +1,22 @@
 package dadkvs.server;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import com.google.protobuf.ByteString;
 import dadkvs.DadkvsPaxos;
 import dadkvs.DadkvsPaxosServiceGrpc;
 import io.grpc.Context;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 
 public class DadkvsPaxosServiceImpl extends DadkvsPaxosServiceGrpc.DadkvsPaxosServiceImplBase {
 
+	private static final int CATCH_UP_CHUNK = 256;
+	private static final int SNAPSHOT_CHUNK = 64 * 1024;
+
 	DadkvsServerState server_state;
 
 	public DadkvsPaxosServiceImpl(DadkvsServerState state) {
@@ -33,13 +43,35 @@ public class DadkvsPaxosServiceImpl extends DadkvsPaxosServiceGrpc.DadkvsPaxosSe
 		}
 
 
+		if (this.server_state.isLeaseHeldByOther(request.getPhase1Proposer())) {
+			DadkvsServer.debug(this.getClass().getSimpleName(), "Rejecting PREPARE from server %d, another leader holds the lease",
+					request.getPhase1Proposer());
+			DadkvsPaxos.PhaseOneReply reply = DadkvsPaxos.PhaseOneReply.newBuilder().setPhase1Accepted(false).build();
+			responseObserver.onNext(reply);
+			responseObserver.onCompleted();
+			return;
+		}
+
 		DadkvsServer.debug(this.getClass().getSimpleName(),
 				"Receive a PREPARE request with round number: " + request.getPhase1RoundNumber());
 
+		if (request.getPhase1Allinstances()) {
+			promiseAllInstances(request, responseObserver);
+			return;
+		}
+
 		Context ctx = Context.current().fork();
 
 		int paxosInstance = request.getPhase1Index();
 		int proposedRoundNumber = request.getPhase1RoundNumber();
+		if (this.server_state.isCompacted(paxosInstance)) {
+			// already decided and applied everywhere, its state is gone
+			DadkvsServer.debug(this.getClass().getSimpleName(), "Rejecting PREPARE for compacted paxosInstance %d", paxosInstance);
+			DadkvsPaxos.PhaseOneReply reply = DadkvsPaxos.PhaseOneReply.newBuilder().setPhase1Accepted(false).build();
+			responseObserver.onNext(reply);
+			responseObserver.onCompleted();
+			return;
+		}
 		// we need to get a possible reqId that was agreed upon from the paxosState at the given index (paxosInstance)
 		PaxosState paxosState = this.server_state.getOrCreatePaxosState(proposedRoundNumber, paxosInstance);
 
@@ -47,22 +79,27 @@ public class DadkvsPaxosServiceImpl extends DadkvsPaxosServiceGrpc.DadkvsPaxosSe
 		// if the read_ts that I have is smaller than the roundNumber being proposed, I PROMISE to it
 		DadkvsServer.debug(this.getClass().getSimpleName(), "Checking if I should accept proposal roundNumber: " + proposedRoundNumber + 
 		"My read_ts: " + paxosState.getReadTs());
-		if (proposedRoundNumber > paxosState.getReadTs()) {
-			// we set our read_ts = proposedRoundNumber
-			paxosState.setReadTs(proposedRoundNumber);
+		// we set our read_ts = proposedRoundNumber, if it is bigger, in one step with the comparison
+		PaxosState promised = this.server_state.promise(paxosState, proposedRoundNumber);
+		if (promised != null) {
 			// if the proposal number i'm getting is bigger than mine, I promise to accept it
 			DadkvsServer.debug(this.getClass().getSimpleName(), "Accepting proposal roundNumber: " + proposedRoundNumber);
 			//this.server_state.setLatestAcceptedRoundNumber(proposedRoundNumber);
-			DadkvsPaxos.PhaseOneReply reply = DadkvsPaxos.PhaseOneReply.newBuilder()
-					.setPhase1Accepted(true)
-					.setPhase1Reqid(paxosState.getCurrentReqId())
-					.setPhase1Timestamp(paxosState.getWriteTs())
-					.setPhase1Config(this.server_state.getCurrentConfig())
-					.build();
-			DadkvsServer.debug(this.getClass().getSimpleName(),
-					"Sending PROMISE with reqid %d and write_ts %d", paxosState.getCurrentReqId(), paxosState.getWriteTs());
-			responseObserver.onNext(reply);
-			responseObserver.onCompleted();
+			// the promise is logged before it is sent
+			this.server_state.getAcceptorLog().promise(paxosInstance, proposedRoundNumber).thenAccept(durable -> {
+				DadkvsPaxos.PhaseOneReply reply = DadkvsPaxos.PhaseOneReply.newBuilder()
+						.setPhase1Accepted(durable)
+						.setPhase1Reqid(promised.getCurrentReqId())
+						.addAllPhase1Batch(promised.getCurrentBatch())
+						.setPhase1Overtake(promised.getCurrentOvertake())
+						.setPhase1Timestamp(promised.getWriteTs())
+						.setPhase1Config(this.server_state.getCurrentConfig())
+						.build();
+				DadkvsServer.debug(this.getClass().getSimpleName(),
+						"Sending PROMISE with reqid %d and write_ts %d", promised.getCurrentReqId(), promised.getWriteTs());
+				responseObserver.onNext(reply);
+				responseObserver.onCompleted();
+			});
 		} else {
 			// the proposal number is smaller than mine; I promised to accept a bigger one,
 			// so I reject this one
@@ -75,6 +112,34 @@ public class DadkvsPaxosServiceImpl extends DadkvsPaxosServiceGrpc.DadkvsPaxosSe
 
 	}
 
+	// PREPARE from a stable leader: one promise for the given index and every instance after it
+	private void promiseAllInstances(DadkvsPaxos.PhaseOneRequest request,
+			StreamObserver<DadkvsPaxos.PhaseOneReply> responseObserver) {
+		int fromInstance = request.getPhase1Index();
+		int proposedRoundNumber = request.getPhase1RoundNumber();
+
+		if (this.server_state.promiseAllInstances(proposedRoundNumber, fromInstance)) {
+			DadkvsServer.debug(this.getClass().getSimpleName(),
+					"Accepting stable proposal roundNumber %d from paxosInstance %d", proposedRoundNumber, fromInstance);
+			List<DadkvsPaxos.AcceptedInstance> accepted = this.server_state.getAcceptedInstances(fromInstance);
+			this.server_state.getAcceptorLog().promiseAll(fromInstance, proposedRoundNumber).thenAccept(durable -> {
+				DadkvsPaxos.PhaseOneReply reply = DadkvsPaxos.PhaseOneReply.newBuilder()
+						.setPhase1Accepted(durable)
+						.setPhase1Index(fromInstance)
+						.setPhase1Config(this.server_state.getCurrentConfig())
+						.addAllPhase1Acceptedinstances(accepted)
+						.build();
+				responseObserver.onNext(reply);
+				responseObserver.onCompleted();
+			});
+		} else {
+			DadkvsServer.debug(this.getClass().getSimpleName(), "Rejecting stable proposal roundNumber: " + proposedRoundNumber);
+			DadkvsPaxos.PhaseOneReply reply = DadkvsPaxos.PhaseOneReply.newBuilder().setPhase1Accepted(false).build();
+			responseObserver.onNext(reply);
+			responseObserver.onCompleted();
+		}
+	}
+
 	@Override
 	public void phasetwo(DadkvsPaxos.PhaseTwoRequest request,
 			StreamObserver<DadkvsPaxos.PhaseTwoReply> responseObserver) {
@@ -90,6 +155,15 @@ public class DadkvsPaxosServiceImpl extends DadkvsPaxosServiceGrpc.DadkvsPaxosSe
 			return;
 		}
 
+		if (this.server_state.isLeaseHeldByOther(request.getPhase2Proposer())) {
+			DadkvsServer.debug(this.getClass().getSimpleName(), "Rejecting ACCEPT from server %d, another leader holds the lease",
+					request.getPhase2Proposer());
+			DadkvsPaxos.PhaseTwoReply reply = DadkvsPaxos.PhaseTwoReply.newBuilder().setPhase2Accepted(false).build();
+			responseObserver.onNext(reply);
+			responseObserver.onCompleted();
+			return;
+		}
+
 		// for debug purposes
 		DadkvsServer.debug(this.getClass().getSimpleName(),
 				"Receive an ACCEPT-REQUEST request with round number %d and reqid %d\n", request.getPhase2RoundNumber(),
@@ -97,6 +171,13 @@ public class DadkvsPaxosServiceImpl extends DadkvsPaxosServiceGrpc.DadkvsPaxosSe
 				
 		int proposedRoundNumber = request.getPhase2RoundNumber();
 		int paxosInstance = request.getPhase2Index();
+		if (this.server_state.isCompacted(paxosInstance)) {
+			DadkvsServer.debug(this.getClass().getSimpleName(), "Rejecting ACCEPT for compacted paxosInstance %d", paxosInstance);
+			DadkvsPaxos.PhaseTwoReply reply = DadkvsPaxos.PhaseTwoReply.newBuilder().setPhase2Accepted(false).build();
+			responseObserver.onNext(reply);
+			responseObserver.onCompleted();
+			return;
+		}
 		PaxosState paxosState = this.server_state.getOrCreatePaxosState(proposedRoundNumber, paxosInstance);
 		Context ctx = Context.current().fork();
 		ctx.run(() -> {
@@ -104,21 +185,28 @@ public class DadkvsPaxosServiceImpl extends DadkvsPaxosServiceGrpc.DadkvsPaxosSe
 		"My read_ts: " + paxosState.getReadTs());
 		// if the proposal number is the same as the one I promised to accept, I accept
 		// the value
-		if (proposedRoundNumber == paxosState.getReadTs()) {
+		// we set the write_ts to the roundNumber, in one step with the comparison
+		if (this.server_state.acceptValue(paxosState, proposedRoundNumber, request.getPhase2BatchList(),
+				request.getPhase2Overtake())) {
 
 			DadkvsServer.debug(this.getClass().getSimpleName(), "Accepting value of reqId %d ,will send ACCEPTED.",
 					request.getPhase2Reqid());
-			// we set the write_ts to the roundNumber
-			paxosState.setWriteTs(proposedRoundNumber);
-			paxosState.setCurrentReqId(request.getPhase2Reqid());
-			this.server_state.learn(request.getPhase2RoundNumber(), request.getPhase2Reqid(), paxosInstance);
-			
-			DadkvsPaxos.PhaseTwoReply reply = DadkvsPaxos.PhaseTwoReply.newBuilder()
-			.setPhase2Accepted(true)
-			.setPhase2Config(this.server_state.getCurrentConfig())
-			.build();
-			responseObserver.onNext(reply);
-			responseObserver.onCompleted();
+			// the accept is logged before the learners hear about it, and ACCEPTED is sent once
+			// they replied, without holding this thread meanwhile
+			this.server_state.getAcceptorLog().accept(paxosInstance, proposedRoundNumber, request.getPhase2BatchList(),
+							request.getPhase2Overtake())
+					.thenCompose(durable -> !durable ? CompletableFuture.completedFuture(false)
+							: this.server_state.learn(request.getPhase2RoundNumber(), request.getPhase2BatchList(),
+									request.getPhase2Overtake(), paxosInstance)
+									.thenApply(learned -> true))
+					.thenAccept(durable -> {
+						DadkvsPaxos.PhaseTwoReply reply = DadkvsPaxos.PhaseTwoReply.newBuilder()
+						.setPhase2Accepted(durable)
+						.setPhase2Config(this.server_state.getCurrentConfig())
+						.build();
+						responseObserver.onNext(reply);
+						responseObserver.onCompleted();
+					});
 
 		} else {
 			DadkvsServer.debug(this.getClass().getSimpleName(), "Rejecting value of reqID %d, will send REJECTED.",
@@ -146,22 +234,35 @@ public class DadkvsPaxosServiceImpl extends DadkvsPaxosServiceGrpc.DadkvsPaxosSe
 		DadkvsServer.debug(this.getClass().getSimpleName(), "Accepting value of reqId %d, will send LEARN-ACCEPTED.",
 				request.getLearnreqid());
 
+		// the acceptor tells how far every server has applied, older state can be discarded
+		this.server_state.compact(request.getLearnlowwatermark());
+
 		// checks if we have a majority to commit the request
 		int paxosInstance = request.getLearnindex();
 		int majority = this.server_state.getNumberOfAcceptors() / 2 + 1;
-		int learnCounter = this.server_state.getLearnCounter(request.getLearnreqid(), request.getLearnroundnumber(), paxosInstance);
-		DadkvsServer.debug(this.getClass().getSimpleName(), "LearnCounter: %d, Majority: %d", learnCounter, majority);
-		if (learnCounter < majority) {
-			DadkvsServer.debug(this.getClass().getSimpleName(), "Not enough LEARN requests to commit the request. LearnCounter: %d, Majority: %d",
-			learnCounter, majority);
+		if (paxosInstance < this.server_state.getExpectedInstanceNumber()) {
+			// late LEARN of an applied instance, there is nothing left to count
+			DadkvsServer.debug(this.getClass().getSimpleName(), "Paxos instance %d is already applied", paxosInstance);
 		} else {
-			DadkvsServer.debug(this.getClass().getSimpleName(), "Learn Majority reached. LearnCounter: %d, Majority: %d",
-			learnCounter, majority);
-			DadkvsServer.debug(this.getClass().getSimpleName(), "Committing request with reqId %d.", request.getLearnreqid());
-			this.server_state.commitRequest(request.getLearnreqid(), paxosInstance);
+			// a repeated LEARN from the same acceptor is not counted twice
+			int learnCounter = this.server_state.countLearn(paxosInstance, request.getLearnroundnumber(), request.getLearnacceptor());
+			DadkvsServer.debug(this.getClass().getSimpleName(), "LearnCounter: %d, Majority: %d", learnCounter, majority);
+			if (learnCounter < majority) {
+				DadkvsServer.debug(this.getClass().getSimpleName(), "Not enough LEARN requests to commit the request. LearnCounter: %d, Majority: %d",
+				learnCounter, majority);
+			} else {
+				DadkvsServer.debug(this.getClass().getSimpleName(), "Learn Majority reached. LearnCounter: %d, Majority: %d",
+				learnCounter, majority);
+				DadkvsServer.debug(this.getClass().getSimpleName(), "Committing batch %s.", request.getLearnbatchList());
+				this.server_state.commitRequest(request.getLearnbatchList(), paxosInstance, request.getLearnovertake());
+			}
 		}
 
-		DadkvsPaxos.LearnReply reply = DadkvsPaxos.LearnReply.newBuilder().setLearnaccepted(true).build();
+		DadkvsPaxos.LearnReply reply = DadkvsPaxos.LearnReply.newBuilder()
+				.setLearnaccepted(true)
+				.setLearnreplica(this.server_state.my_id)
+				.setLearnapplied(this.server_state.getExpectedInstanceNumber() - 1)
+				.build();
 		DadkvsServer.debug(this.getClass().getSimpleName(), "Sending LEARN-REPLY with round number %d and reqid %d\n"	,
 				request.getLearnroundnumber(), request.getLearnreqid());
 
@@ -170,4 +271,93 @@ public class DadkvsPaxosServiceImpl extends DadkvsPaxosServiceGrpc.DadkvsPaxosSe
 		});
 	}
 
+	@Override
+	public void lease(DadkvsPaxos.LeaseRequest request, StreamObserver<DadkvsPaxos.LeaseReply> responseObserver) {
+		this.server_state.getFreezeMode().waitUntilUnfreezed();
+		this.server_state.getSlowMode().waitUntilUnslowed();
+
+		boolean granted = request.getLeaseconfig() == this.server_state.getCurrentConfig()
+				&& this.server_state.grantLease(request.getLeaseholder(), request.getLeaseduration());
+		DadkvsServer.debug(this.getClass().getSimpleName(), "%s lease of %d ms to server %d",
+				granted ? "Granting" : "Refusing", request.getLeaseduration(), request.getLeaseholder());
+		DadkvsPaxos.LeaseReply reply = DadkvsPaxos.LeaseReply.newBuilder()
+				.setLeasegranted(granted)
+				.setLeaselastaccepted(this.server_state.getLastAcceptedInstance())
+				.build();
+		responseObserver.onNext(reply);
+		responseObserver.onCompleted();
+	}
+
+	// streams the decided log, with the transactions, to a replica that fell behind
+	@Override
+	public void catchup(DadkvsPaxos.CatchUpRequest request, StreamObserver<DadkvsPaxos.DecidedInstance> responseObserver) {
+		this.server_state.getFreezeMode().waitUntilUnfreezed();
+		this.server_state.getSlowMode().waitUntilUnslowed();
+
+		DadkvsServer.debug(this.getClass().getSimpleName(),
+				"Receive a CATCH-UP request from server %d starting at paxos instance %d", request.getCatchupreplica(),
+				request.getCatchupfrom());
+
+		if (request.getCatchupfrom() < this.server_state.getDecidedLogStart()) {
+			// those instances were dropped after a snapshot, the replica has to install one first
+			responseObserver.onError(Status.OUT_OF_RANGE
+					.withDescription("instances before " + this.server_state.getDecidedLogStart() + " are in the snapshot")
+					.asRuntimeException());
+			return;
+		}
+
+		// sent in chunks, so the state lock is never held while streaming
+		int nextInstance = request.getCatchupfrom();
+		List<DadkvsPaxos.DecidedInstance> chunk = this.server_state.getDecidedInstances(nextInstance, CATCH_UP_CHUNK);
+		while (!chunk.isEmpty()) {
+			for (DadkvsPaxos.DecidedInstance decided : chunk) {
+				responseObserver.onNext(decided);
+			}
+			nextInstance += chunk.size();
+			chunk = this.server_state.getDecidedInstances(nextInstance, CATCH_UP_CHUNK);
+		}
+		DadkvsServer.debug(this.getClass().getSimpleName(),
+				"Sent paxos instances %d to %d to server %d", request.getCatchupfrom(), nextInstance - 1,
+				request.getCatchupreplica());
+		responseObserver.onCompleted();
+	}
+
+	// streams a snapshot of the store, taken now, to a replica whose missing instances were dropped; the
+	// entries go out a chunk at a time as they are read from the store
+	@Override
+	public void snapshot(DadkvsPaxos.SnapshotRequest request, StreamObserver<DadkvsPaxos.SnapshotChunk> responseObserver) {
+		this.server_state.getFreezeMode().waitUntilUnfreezed();
+		this.server_state.getSlowMode().waitUntilUnslowed();
+
+		StoreSnapshot snapshot = this.server_state.takeSnapshot();
+		long[] sent = new long[1];
+		OutputStream chunks = new BufferedOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] data, int offset, int length) {
+				responseObserver.onNext(DadkvsPaxos.SnapshotChunk.newBuilder()
+						.setSnapshotindex(snapshot.getInstance())
+						.setSnapshotdata(ByteString.copyFrom(data, offset, length))
+						.build());
+				sent[0] += length;
+			}
+		}, SNAPSHOT_CHUNK);
+		try {
+			snapshot.writeTo(chunks);
+		} catch (IOException e) {
+			responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+			return;
+		} finally {
+			snapshot.release();
+		}
+		DadkvsServer.debug(this.getClass().getSimpleName(),
+				"Sent snapshot of paxos instance %d (%d bytes) to server %d", snapshot.getInstance(), sent[0],
+				request.getSnapshotreplica());
+		responseObserver.onCompleted();
+	}
+
 }
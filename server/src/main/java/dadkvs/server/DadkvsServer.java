@@ -14,14 +14,11 @@ public class DadkvsServer {
 	private static int port;
 
 	public static void debug(String debugClass, String format, Object... args) {
-		System.out.printf("[" + debugClass + "] ");
-		System.out.printf(format, args);
-		System.out.println();
+		// a single println, so the lines of the apply workers do not interleave
+		System.out.println("[" + debugClass + "] " + String.format(format, args));
 	}
 
 	public static void main(String[] args) throws Exception {
-		final int kvsize = 1000;
-
 		System.out.println(DadkvsServer.class.getSimpleName());
 
 		// Print received arguments.
@@ -33,19 +30,29 @@ public class DadkvsServer {
 		// Check arguments.
 		if (args.length < 2) {
 			System.err.println("Argument(s) missing!");
-			System.err.printf("Usage: java %s baseport replica-id%n", Server.class.getName());
+			System.err.printf("Usage: java %s baseport replica-id [options]%n", Server.class.getName());
+			System.err.println("Options (see the Servers section of the README):");
+			System.err.println("  --pipeline window  --stableleader on/off  --batchsize n  --batchdelay ms");
+			System.err.println("  --backoffbase ms  --backoffmax ms  --quorumtimeout ms  --proposer sequencer/virtual");
+			System.err.println("  --commitqueue n  --durability off/sync/group/async  --waldir directory");
+			System.err.println("  --catchupdelay ms  --snapshotinterval n  --lease ms  --followerwait ms");
+			System.err.println("  --fastpath on/off  --commitretention n  --mvcc n  --applythreads n  --store heap/mapped");
 			return;
 		}
 
 		int base_port = Integer.valueOf(args[0]);
 		int my_id = Integer.valueOf(args[1]);
 
-		server_state = new DadkvsServerState(kvsize, base_port, my_id);
+		DadkvsServerConfig config = new DadkvsServerConfig();
+		config.parseArgs(args, 2);
+		System.out.println("Server config: " + config);
+
+		server_state = new DadkvsServerState(base_port, my_id, config);
 
 		port = base_port + my_id;
 
-		final BindableService service_impl = new DadkvsMainServiceImpl(server_state);
-		final BindableService console_impl = new DadkvsConsoleServiceImpl(server_state);
+		final DadkvsMainServiceImpl service_impl = new DadkvsMainServiceImpl(server_state);
+		final BindableService console_impl = new DadkvsConsoleServiceImpl(server_state, service_impl);
 		final BindableService paxos_impl = new DadkvsPaxosServiceImpl(server_state);
 
 		// Create a new server to listen on port.
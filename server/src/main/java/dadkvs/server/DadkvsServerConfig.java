@@ -0,0 +1,311 @@
+package dadkvs.server;
+
+public class DadkvsServerConfig {
+	// number of paxos instances the leader may have in flight at the same time
+	int pipeline_window;
+	// multi-paxos: the leader runs phase 1 once and then only phase 2 for each new instance
+	boolean stable_leader;
+	// maximum number of queued commits decided together in one paxos instance
+	int batch_size;
+	// how long (ms) a batch waits for more commits before starting, 0 starts right away
+	int batch_delay;
+	// randomized exponential backoff (ms) between failed proposer rounds
+	int backoff_base;
+	int backoff_max;
+	// how long (ms) a paxos phase waits for a quorum before giving up on the round, 0 waits forever
+	int quorum_timeout;
+	// how the leader runs consensus work: "sequencer" (one thread) or "virtual" (a virtual thread per task)
+	String proposer_mode;
+	// maximum number of commits waiting for a pipeline slot, further ones are rejected
+	int commit_queue_capacity;
+	// acceptor write-ahead log: "off", "sync", "group" (one fsync per group of records) or "async"
+	String durability;
+	// directory where the acceptor log and the snapshots are kept
+	String wal_directory;
+	// a snapshot of the store is written every snapshot_interval instances, 0 never writes one
+	int snapshot_interval;
+	// how long (ms) a leader lease granted by the acceptors lasts, 0 disables leases (any replica answers reads)
+	int lease_duration;
+	// how long (ms) a follower read waits for the replica to reach the index the client asks for
+	int follower_read_wait;
+	// how long (ms) a replica waits for a missing instance before pulling it from another replica
+	int catchup_delay;
+	// the leader lets an instance be applied ahead of the decided instances before it that touch none of its keys
+	boolean fast_path;
+	// how many applied reqids each replica remembers (with their instance and outcome) to drop duplicates
+	int commit_retention;
+	// how many instances behind the last one applied in order a read at an instance may go, 0 keeps
+	// only the latest version of every key
+	int mvcc_window;
+	// threads committing the transactions of a batch that touch unrelated keys, 1 commits them in order
+	int apply_threads;
+	// where the store keeps its slots: on the heap, or in a memory-mapped file in wal_directory
+	String store_backend;
+
+	public DadkvsServerConfig() {
+		pipeline_window = 4;
+		stable_leader = false;
+		batch_size = 16;
+		batch_delay = 0;
+		backoff_base = 2;
+		backoff_max = 1000;
+		quorum_timeout = 5000;
+		proposer_mode = ProposerExecutor.SEQUENCER;
+		commit_queue_capacity = 10000;
+		durability = AcceptorLog.OFF;
+		wal_directory = ".";
+		catchup_delay = 1000;
+		snapshot_interval = 0;
+		lease_duration = 0;
+		follower_read_wait = 200;
+		fast_path = false;
+		commit_retention = 100000;
+		mvcc_window = 0;
+		apply_threads = 1;
+		store_backend = KeyValueStore.HEAP;
+	}
+
+	// options come after the mandatory "baseport replica-id" arguments, either as
+	// "--option value" in a single argument (as the client does) or as two arguments
+	public void parseArgs(String[] args, int first) {
+		int cursor = first;
+		while (cursor < args.length) {
+			String[] option_parts = args[cursor].split(" ");
+			String option_name = option_parts[0].toLowerCase();
+			String option_parameter = option_parts.length > 1 ? option_parts[1] : null;
+			if (option_parameter == null && cursor + 1 < args.length && !args[cursor + 1].startsWith("--")) {
+				cursor++;
+				option_parameter = args[cursor];
+			}
+
+			switch (option_name) {
+				case "--pipeline":
+					if (option_parameter == null)
+						System.err.println("missing pipeline window");
+					else
+						pipeline_window = Math.max(1, Integer.parseInt(option_parameter));
+					break;
+				case "--stableleader":
+					if (option_parameter == null)
+						System.err.println("missing on/off");
+					else
+						stable_leader = option_parameter.equals("on");
+					break;
+				case "--batchsize":
+					if (option_parameter == null)
+						System.err.println("missing batch size");
+					else
+						batch_size = Math.max(1, Integer.parseInt(option_parameter));
+					break;
+				case "--batchdelay":
+					if (option_parameter == null)
+						System.err.println("missing batch delay");
+					else
+						batch_delay = Math.max(0, Integer.parseInt(option_parameter));
+					break;
+				case "--backoffbase":
+					if (option_parameter == null)
+						System.err.println("missing backoff base");
+					else
+						backoff_base = Math.max(1, Integer.parseInt(option_parameter));
+					break;
+				case "--backoffmax":
+					if (option_parameter == null)
+						System.err.println("missing backoff max");
+					else
+						backoff_max = Math.max(1, Integer.parseInt(option_parameter));
+					break;
+				case "--quorumtimeout":
+					if (option_parameter == null)
+						System.err.println("missing quorum timeout");
+					else
+						quorum_timeout = Math.max(0, Integer.parseInt(option_parameter));
+					break;
+				case "--proposer":
+					if (option_parameter == null)
+						System.err.println("missing sequencer/virtual");
+					else if (option_parameter.equals(ProposerExecutor.SEQUENCER) || option_parameter.equals(ProposerExecutor.VIRTUAL))
+						proposer_mode = option_parameter;
+					else
+						System.err.println("unknown proposer mode " + option_parameter);
+					break;
+				case "--commitqueue":
+					if (option_parameter == null)
+						System.err.println("missing commit queue capacity");
+					else
+						commit_queue_capacity = Math.max(1, Integer.parseInt(option_parameter));
+					break;
+				case "--durability":
+					if (option_parameter == null)
+						System.err.println("missing off/sync/group/async");
+					else if (option_parameter.equals(AcceptorLog.OFF) || option_parameter.equals(AcceptorLog.SYNC)
+							|| option_parameter.equals(AcceptorLog.GROUP) || option_parameter.equals(AcceptorLog.ASYNC))
+						durability = option_parameter;
+					else
+						System.err.println("unknown durability " + option_parameter);
+					break;
+				case "--waldir":
+					if (option_parameter == null)
+						System.err.println("missing log directory");
+					else
+						wal_directory = option_parameter;
+					break;
+				case "--catchupdelay":
+					if (option_parameter == null)
+						System.err.println("missing catch-up delay");
+					else
+						catchup_delay = Math.max(1, Integer.parseInt(option_parameter));
+					break;
+				case "--snapshotinterval":
+					if (option_parameter == null)
+						System.err.println("missing snapshot interval");
+					else
+						snapshot_interval = Math.max(0, Integer.parseInt(option_parameter));
+					break;
+				case "--lease":
+					if (option_parameter == null)
+						System.err.println("missing lease duration");
+					else
+						lease_duration = Math.max(0, Integer.parseInt(option_parameter));
+					break;
+				case "--followerwait":
+					if (option_parameter == null)
+						System.err.println("missing follower read wait");
+					else
+						follower_read_wait = Math.max(0, Integer.parseInt(option_parameter));
+					break;
+				case "--fastpath":
+					if (option_parameter == null)
+						System.err.println("missing on/off");
+					else
+						fast_path = option_parameter.equals("on");
+					break;
+				case "--commitretention":
+					if (option_parameter == null)
+						System.err.println("missing commit retention");
+					else
+						commit_retention = Math.max(1, Integer.parseInt(option_parameter));
+					break;
+				case "--mvcc":
+					if (option_parameter == null)
+						System.err.println("missing mvcc window");
+					else
+						mvcc_window = Math.max(0, Integer.parseInt(option_parameter));
+					break;
+				case "--applythreads":
+					if (option_parameter == null)
+						System.err.println("missing apply threads");
+					else
+						apply_threads = Math.max(1, Integer.parseInt(option_parameter));
+					break;
+				case "--store":
+					if (option_parameter == null)
+						System.err.println("missing heap/mapped");
+					else if (option_parameter.equals(KeyValueStore.HEAP) || option_parameter.equals(KeyValueStore.MAPPED))
+						store_backend = option_parameter;
+					else
+						System.err.println("unknown store " + option_parameter);
+					break;
+				default:
+					System.err.println("Unknown option " + option_name);
+					break;
+			}
+			cursor++;
+		}
+	}
+
+	public int getPipelineWindow() {
+		return pipeline_window;
+	}
+
+	public boolean isStableLeader() {
+		return stable_leader;
+	}
+
+	public int getBatchSize() {
+		return batch_size;
+	}
+
+	public int getBatchDelay() {
+		return batch_delay;
+	}
+
+	public int getBackoffBase() {
+		return backoff_base;
+	}
+
+	public int getBackoffMax() {
+		return backoff_max;
+	}
+
+	public int getQuorumTimeout() {
+		return quorum_timeout;
+	}
+
+	public String getProposerMode() {
+		return proposer_mode;
+	}
+
+	public int getCommitQueueCapacity() {
+		return commit_queue_capacity;
+	}
+
+	public String getDurability() {
+		return durability;
+	}
+
+	public String getWalDirectory() {
+		return wal_directory;
+	}
+
+	public int getCatchUpDelay() {
+		return catchup_delay;
+	}
+
+	public int getSnapshotInterval() {
+		return snapshot_interval;
+	}
+
+	public int getLeaseDuration() {
+		return lease_duration;
+	}
+
+	public int getFollowerReadWait() {
+		return follower_read_wait;
+	}
+
+	public boolean isFastPath() {
+		return fast_path;
+	}
+
+	public int getCommitRetention() {
+		return commit_retention;
+	}
+
+	public int getMvccWindow() {
+		return mvcc_window;
+	}
+
+	public int getApplyThreads() {
+		return apply_threads;
+	}
+
+	public String getStoreBackend() {
+		return store_backend;
+	}
+
+	@Override
+	public String toString() {
+		return "pipeline_window = " + pipeline_window + " stable_leader = " + stable_leader
+				+ " batch_size = " + batch_size + " batch_delay = " + batch_delay
+				+ " backoff_base = " + backoff_base + " backoff_max = " + backoff_max
+				+ " quorum_timeout = " + quorum_timeout
+				+ " proposer_mode = " + proposer_mode + " commit_queue_capacity = " + commit_queue_capacity
+				+ " durability = " + durability + " wal_directory = " + wal_directory
+				+ " catchup_delay = " + catchup_delay + " snapshot_interval = " + snapshot_interval
+				+ " lease_duration = " + lease_duration + " follower_read_wait = " + follower_read_wait
+				+ " fast_path = " + fast_path + " commit_retention = " + commit_retention
+				+ " mvcc_window = " + mvcc_window + " apply_threads = " + apply_threads
+				+ " store_backend = " + store_backend;
+	}
+}
@@ -1,38 +1,86 @@
 package dadkvs.server;
 
-import java.util.AbstractMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import dadkvs.DadkvsMain;
 import dadkvs.DadkvsPaxos;
 import dadkvs.DadkvsPaxosServiceGrpc;
-import dadkvs.util.CollectorStreamObserver;
+import dadkvs.util.ExponentialBackoff;
 import dadkvs.util.FreezeMode;
-import dadkvs.util.GenericResponseCollector;
+import dadkvs.util.QuorumCollector;
 import dadkvs.util.SlowMode;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
 
 public class DadkvsServerState {
-	boolean i_am_leader;
+	volatile boolean i_am_leader;
 	int debug_mode;
 	int base_port;
 	int my_id;
-	int store_size;
 	KeyValueStore store;
 	MainLoop main_loop;
 	Thread main_loop_worker;
 	FreezeMode freeze_mode;
 	SlowMode slow_mode;
+	DadkvsServerConfig config;
+	ExponentialBackoff proposer_backoff;
+	ProposerExecutor proposer_executor;
+	AcceptorLog acceptor_log;
 
 	// {301: requestDetails, 302: requestDetails, ...}
 	private final Map<Integer, DadkvsMain.CommitRequest> pendingCommits;
-	// [(reqId, true), (reqId2, false), ...]
-	private final List<Map.Entry<Integer, Boolean>> totalOrderList;
+	// {301: (instance 4, committed), 302: (instance 4, aborted), ...} for the most recently applied requests
+	private final CommitIndex commitIndex;
+	// follower commits waiting for their request to be applied [reqid -> instance it was applied in, or -1
+	// if this server became the leader first]; only the waiting request is completed
+	private final Map<Integer, CompletableFuture<Integer>> completions;
+	// [instance decidedLogStart, decidedLogStart + 1, ...] with the transactions applied in each, for
+	// lagging replicas; the instances covered by the last snapshot are dropped
+	private final List<DadkvsPaxos.DecidedInstance> decidedLog;
+	private int decidedLogStart;
+	private final ExecutorService snapshot_writer;
+	// checkpoints: entries in the last full snapshot and in the deltas appended after it, the commits
+	// recorded when the last one was taken, and whether one failed (the next one is then full)
+	private int checkpointBaseEntries;
+	private int checkpointDeltaEntries;
+	private long checkpointCommitMark;
+	private volatile boolean checkpointFailed;
+	// set by the snapshot writer (and only used by it) from a failed checkpoint until the next full one
+	// is written: the deltas queued meanwhile have nothing on disk to be applied on, so they are dropped
+	private boolean checkpointChainBroken;
+	// commits the transactions of a batch that do not conflict with each other in parallel
+	private final ApplyEngine applyEngine;
+	private boolean catchUpInFlight;
+	private int catchUpTarget;
+	// instances applied before some earlier instance they do not conflict with; they join the decided
+	// log once every instance before them is applied [instance -> transactions applied]
+	private final TreeMap<Integer, DadkvsPaxos.DecidedInstance> appliedAhead;
+	// fast path, leader side: keys touched by the instances this leader got decided and that are
+	// not applied here yet, later batches that touch none of them may be applied before them
+	private final Map<Integer, KeyFootprint> decidedFootprints = new ConcurrentHashMap<>();
 
 	private final ManagedChannel[] serverChannels;
 	private final DadkvsPaxosServiceGrpc.DadkvsPaxosServiceStub[] paxosStubs;
@@ -46,23 +94,62 @@ public class DadkvsServerState {
 	private int paxosCounter; // for leader
 	private int expectedInstanceNumber; // guarantee replicas apply the requests in the same order
 	
-	// MAPA [reqID, instanceNumber, roundNumber] ->>> learnCounter
-	private Map<LearnState, Integer> learnCounter = new HashMap<>();
-
-
-	public DadkvsServerState(int kv_size, int port, int myself) {
+	// LEARNs received for the most recent instances, 4096 of them
+	private final LearnTally learnTally = new LearnTally(12);
+
+	// last instance applied by each server, as reported in their LEARN replies
+	private final int[] appliedInstances;
+	// every instance <= lowWatermark was applied by all servers, so its paxos state was discarded
+	private volatile int lowWatermark;
+
+	// stable leader (multi-paxos), proposer side: round promised by a majority for every
+	// instance from the prepare index onward, null while phase 1 still has to be run
+	private final Object stableLeaderLock = new Object();
+	private CompletableFuture<Integer> stableLeadership;
+	private int lastStableRoundNumber;
+	// values accepted under previous leaders that this leader must propose again [instance -> value]
+	private final Map<Integer, PaxosValue> recoveredValues = new ConcurrentHashMap<>();
+
+	// stable leader (multi-paxos), acceptor side: promise given for every instance >= stablePromiseIndex
+	private int stablePromiseRound;
+	private int stablePromiseIndex;
+
+	// leader lease, leader side: while it holds (System.nanoTime), the acceptors that granted it reject
+	// every other proposer, so the leader can answer reads from its own store
+	private final Object leaseLock = new Object();
+	private long leaseValidUntil;
+	private boolean leaseRenewing;
+	private int leaseReadIndex; // reads wait until every instance up to it is applied
+	private int lastDecidedInstance;
+	// leader lease, acceptor side
+	private int leaseGrantedTo;
+	private long leaseGrantedUntil;
+
+
+	public DadkvsServerState(int port, int myself, DadkvsServerConfig server_config) throws IOException {
 		base_port = port;
+		config = server_config;
 		my_id = myself;
 		i_am_leader = my_id == 0;
 		debug_mode = 6;
-		store_size = kv_size;
 		this.pendingCommits = new HashMap<>();
-		store = new KeyValueStore(kv_size);
+		if (config.getStoreBackend().equals(KeyValueStore.MAPPED)) {
+			if (config.getMvccWindow() > 0) {
+				System.err.println("the mapped store keeps a single version per key, reads at an instance expire");
+			}
+			store = new MappedKeyValueStore(Path.of(config.getWalDirectory(), "store-" + my_id + ".slots"),
+					Path.of(config.getWalDirectory(), "store-" + my_id + ".meta"), config.getCommitRetention());
+		} else {
+			// with a window, reads at an instance that far back are served from the version chains
+			store = new KeyValueStore(config.getMvccWindow() > 0);
+		}
 		main_loop = new MainLoop(this);
 		main_loop_worker = new Thread(main_loop);
 		main_loop_worker.start();
 		freeze_mode = new FreezeMode();
 		slow_mode = new SlowMode();
+		proposer_backoff = new ExponentialBackoff(my_id, config.getBackoffBase(), config.getBackoffMax());
+		proposer_executor = new ProposerExecutor(config.getProposerMode(), config.getCommitQueueCapacity());
 		
 		// communication with other servers
 		this.n_servers = 5;
@@ -79,10 +166,97 @@ public class DadkvsServerState {
 			paxosStubs[i] = DadkvsPaxosServiceGrpc.newStub(serverChannels[i]);
 		}
 
-		this.totalOrderList = new ArrayList<>();
+		this.commitIndex = new CommitIndex(config.getCommitRetention());
+		this.completions = new HashMap<>();
+		this.decidedLog = new ArrayList<>();
+		this.decidedLogStart = 1;
+		this.appliedAhead = new TreeMap<>();
+		this.snapshot_writer = Executors.newSingleThreadExecutor(task -> new Thread(task, "snapshot-writer"));
+		this.applyEngine = new ApplyEngine(config.getApplyThreads());
+		this.catchUpInFlight = false;
+		this.catchUpTarget = my_id;
 		this.paxosInstances = new ConcurrentHashMap<>();
 		this.paxosCounter = 0; // counter for the paxos rounds
 		this.expectedInstanceNumber = 1;
+		this.appliedInstances = new int[n_servers];
+		this.lowWatermark = 0;
+
+		this.stableLeadership = null;
+		this.lastStableRoundNumber = -1;
+		this.stablePromiseRound = -1;
+		this.stablePromiseIndex = Integer.MAX_VALUE;
+
+		// promises and accepts made before a restart still hold
+		acceptor_log = new AcceptorLog(config.getDurability(),
+				Path.of(config.getWalDirectory(), "acceptor-" + my_id + ".log"));
+		recoverAcceptorState();
+		// a mapped store is still where it was, otherwise the store restarts from the last snapshot; the
+		// instances after it are caught up from the others
+		if (this.store.getRecoveredInstance() >= 0) {
+			recoverStore();
+		} else {
+			loadSnapshot();
+		}
+
+		this.leaseValidUntil = 0;
+		this.leaseRenewing = false;
+		this.leaseReadIndex = 0;
+		this.lastDecidedInstance = 0;
+		this.leaseGrantedTo = -1;
+		this.leaseGrantedUntil = 0;
+		if (i_am_leader) {
+			startLeaseRenewal();
+		}
+	}
+
+	private synchronized void recoverAcceptorState() throws IOException {
+		List<AcceptorLog.Record> records = this.acceptor_log.replay();
+		for (AcceptorLog.Record record : records) {
+			int roundNumber = record.getRound();
+			switch (record.getType()) {
+				case AcceptorLog.PROMISE: {
+					PaxosState paxosState = getOrCreatePaxosState(roundNumber, record.getInstance());
+					paxosState.setReadTs(Math.max(paxosState.getReadTs(), roundNumber));
+					break;
+				}
+				case AcceptorLog.ACCEPT: {
+					PaxosState paxosState = getOrCreatePaxosState(roundNumber, record.getInstance());
+					paxosState.setReadTs(Math.max(paxosState.getReadTs(), roundNumber));
+					paxosState.setWriteTs(roundNumber);
+					paxosState.setCurrentBatch(record.getBatch());
+					paxosState.setCurrentOvertake(record.getOvertake());
+					break;
+				}
+				case AcceptorLog.PROMISE_ALL:
+					restoreStablePromise(roundNumber, record.getInstance());
+					break;
+				case AcceptorLog.TRUNCATED:
+					// the log was compacted at this watermark, the instances before it stay compacted
+					this.lowWatermark = Math.max(this.lowWatermark, record.getInstance());
+					break;
+				default:
+					break;
+			}
+		}
+		if (!records.isEmpty()) {
+			DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
+					"Recovered %d acceptor log records, %d paxos instances", records.size(), this.paxosInstances.size());
+		}
+	}
+
+	// a logged stable leader promise was made, so it is restored without the acceptor's checks: the
+	// records replayed before it may already hold its round
+	private void restoreStablePromise(int roundNumber, int fromInstance) {
+		if (roundNumber <= this.stablePromiseRound) {
+			return;
+		}
+		this.stablePromiseRound = roundNumber;
+		this.stablePromiseIndex = fromInstance;
+		for (Map.Entry<Integer, PaxosState> entry : this.paxosInstances.entrySet()) {
+			if (entry.getKey() >= fromInstance) {
+				entry.getValue().setReadTs(Math.max(entry.getValue().getReadTs(), roundNumber));
+			}
+		}
 	}
 
 	public DadkvsPaxosServiceGrpc.DadkvsPaxosServiceStub[] getAcceptors() {
@@ -103,40 +277,193 @@ public class DadkvsServerState {
 	}
 
 
-	public boolean runPaxos(DadkvsMain.CommitRequest request, boolean increment) {
-		// increments the paxos counter, generates a round number 
-		// and places the paxosState into the paxosInstances map (inside generateRoundNumber)
-		int paxosInstance;
-		if (increment) {
-			DadkvsServer.debug(DadkvsServerState.class.getSimpleName(), "Incrementing paxosCounter");
-			paxosInstance = getNewPaxosInstance();
-			System.out.println("2PaxosCounter: " + this.paxosCounter);
-		} else {
-			paxosInstance = this.paxosCounter;
+	// decides the whole batch of reqids in a single paxos instance, in the given order, and completes
+	// with that instance (-1 if it could not be decided). every phase is a stage chained on the
+	// replies of the previous one, so no thread is kept waiting for the acceptors meanwhile
+	public CompletableFuture<Integer> runPaxos(List<Integer> batch) {
+		// each call owns its own paxos instance, so several of them can be in flight
+		// at once (up to the pipeline window); retries stay on the same instance
+		if (this.config.isStableLeader()) {
+			return runStablePaxos(batch, getNewPaxosInstance());
 		}
+		return runClassicPaxos(batch, getNewPaxosInstance());
+	}
+
+	private CompletableFuture<Integer> runClassicPaxos(List<Integer> batch, int paxosInstance) {
+		// generates a round number and places the paxosState into the paxosInstances map
 		int roundNumber = generateRoundNumber(paxosInstance); // round of paxos, one instance may have multiple rounds (each round starts with a PREPARE)
-		//this.currentReqId = request.getReqid();
 		DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
-				"Starting paxos %d with round number %d and reqid %d", paxosInstance, roundNumber, request.getReqid());
-		// sends PREPAREs		
-		boolean phaseOneResult = runPaxosPhase1(roundNumber, request.getReqid(), paxosInstance);
-		DadkvsServer.debug(DadkvsServerState.class.getSimpleName(), "Phase 1 result: %b", phaseOneResult);
-
-		if (phaseOneResult) {
+				"Starting paxos %d with round number %d and batch %s", paxosInstance, roundNumber, batch);
+		// sends PREPAREs
+		return runPaxosPhase1(roundNumber, batch, paxosInstance).thenComposeAsync(valueToPropose -> {
+			DadkvsServer.debug(DadkvsServerState.class.getSimpleName(), "Phase 1 result: %b", valueToPropose != null);
+			if (valueToPropose == null) {
+				// PHASE ONE FAILED - NEED TO DO AN EXTRA ROUND
+				return retryClassicPaxos(batch, paxosInstance);
+			}
 			// send accept
 			DadkvsServer.debug(DadkvsServerState.class.getSimpleName(), "Going to run phase 2");
-			int reqIdToPropose = this.paxosInstances.get(paxosInstance).getCurrentReqId();
-			boolean phaseTwoResult = runPaxosPhase2(roundNumber, reqIdToPropose, request, paxosInstance);
+			KeyFootprint footprint = getFootprint(valueToPropose.getBatch());
+			return runPaxosPhase2(roundNumber, valueToPropose, paxosInstance).thenComposeAsync(phaseTwoResult -> {
+				DadkvsServer.debug(DadkvsServerState.class.getSimpleName(), "Phase 2 result: %b", phaseTwoResult);
+				if (!phaseTwoResult) {
+					// a timeout does not mean the value was not chosen: phase 1 of a higher round on the
+					// same instance finds it if it was, so the instance is never left empty
+					return retryClassicPaxos(batch, paxosInstance);
+				}
+				instanceDecided(paxosInstance, footprint);
+				if (valueToPropose.getBatch().equals(batch)) {
+					return CompletableFuture.completedFuture(paxosInstance);
+				}
+				// the instance went to a value accepted in a previous round, our batch needs another instance
+				return runClassicPaxos(batch, getNewPaxosInstance());
+			}, this.proposer_executor);
+		}, this.proposer_executor);
+	}
+
+	// runs the instance again after the backoff, unless this replica already applied it meanwhile: then
+	// the batch either went in it (or in an earlier one) or it has to move on to a new instance
+	private CompletableFuture<Integer> retryClassicPaxos(List<Integer> batch, int paxosInstance) {
+		return exponentialBackoff(paxosInstance).thenComposeAsync(ignored -> {
+			if (paxosInstance < getExpectedInstanceNumber()) {
+				int appliedInstance = getAppliedInstance(batch);
+				if (appliedInstance >= 0) {
+					return CompletableFuture.completedFuture(appliedInstance);
+				}
+				return runClassicPaxos(batch, getNewPaxosInstance());
+			}
+			return runClassicPaxos(batch, paxosInstance);
+		}, this.proposer_executor);
+	}
+
+	// multi-paxos: phase 1 is run once for all instances and then every commit only needs phase 2
+	private CompletableFuture<Integer> runStablePaxos(List<Integer> batch, int paxosInstance) {
+		return stableLeadership().thenComposeAsync(roundNumber -> {
+			if (roundNumber < 0) {
+				// stopped being the leader while waiting for phase 1
+				return CompletableFuture.completedFuture(-1);
+			}
+			// a value accepted under a previous leader has to be proposed again for this instance
+			PaxosValue valueToPropose = this.recoveredValues.get(paxosInstance);
+			if (valueToPropose == null) {
+				valueToPropose = new PaxosValue(batch, computeOvertake(batch, paxosInstance));
+			}
+			final PaxosValue proposed = valueToPropose;
+			KeyFootprint footprint = getFootprint(proposed.getBatch());
+			getOrCreatePaxosState(roundNumber, paxosInstance);
+			DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
+					"Stable leader running phase 2 of paxos %d with round number %d and batch %s", paxosInstance, roundNumber, proposed.getBatch());
+			return runPaxosPhase2(roundNumber, proposed, paxosInstance).thenComposeAsync(phaseTwoResult -> {
+				DadkvsServer.debug(DadkvsServerState.class.getSimpleName(), "Phase 2 result: %b", phaseTwoResult);
+				if (phaseTwoResult) {
+					instanceDecided(paxosInstance, footprint);
+					this.recoveredValues.remove(paxosInstance);
+					if (proposed.getBatch().equals(batch)) {
+						return CompletableFuture.completedFuture(paxosInstance);
+					}
+					// this instance went to a recovered value, the batch moves on to the next instance
+					return runStablePaxos(batch, getNewPaxosInstance());
+				}
+				// preempted by a higher round, phase 1 has to be run again before retrying this instance
+				loseStableLeadership(roundNumber);
+				return exponentialBackoff(paxosInstance).thenComposeAsync(ignored -> runStablePaxos(batch, paxosInstance),
+						this.proposer_executor);
+			}, this.proposer_executor);
+		}, this.proposer_executor);
+	}
+
+	// the stable round all instances of this leader are waiting on, running phase 1 if there is none;
+	// completes with -1 if this server is not the leader
+	private CompletableFuture<Integer> stableLeadership() {
+		synchronized (this.stableLeaderLock) {
+			if (this.stableLeadership == null
+					|| (this.stableLeadership.isDone() && this.stableLeadership.join() < 0)) {
+				this.stableLeadership = prepareStableLeadership();
+			}
+			return this.stableLeadership;
+		}
+	}
 
-			DadkvsServer.debug(DadkvsServerState.class.getSimpleName(), "Phase 2 result: %b", phaseTwoResult);
-			return phaseTwoResult;
+	private CompletableFuture<Integer> prepareStableLeadership() {
+		if (!isLeader()) {
+			return CompletableFuture.completedFuture(-1);
+		}
+		int roundNumber;
+		synchronized (this.stableLeaderLock) {
+			// rounds are unique per server and grow with every new attempt
+			roundNumber = this.lastStableRoundNumber < 0 ? my_id : this.lastStableRoundNumber + n_servers;
+			this.lastStableRoundNumber = roundNumber;
 		}
-		// PHASE ONE FAILED - NEED TO DO AN EXTRA ROUND
-		waitExponentialBackoff();
-		return runPaxos(request, false);
+		return runStablePaxosPhase1(roundNumber, getExpectedInstanceNumber()).thenComposeAsync(promised -> {
+			if (promised) {
+				this.proposer_backoff.reset();
+				return CompletableFuture.completedFuture(roundNumber);
+			}
+			return this.proposer_backoff.backoffAsync().thenComposeAsync(ignored -> prepareStableLeadership(),
+					this.proposer_executor);
+		}, this.proposer_executor);
 	}
 
-	public boolean runPaxosPhase1(int roundNumber, int reqId, int paxosInstance) {
+	private void loseStableLeadership(int roundNumber) {
+		synchronized (this.stableLeaderLock) {
+			if (this.stableLeadership != null && this.stableLeadership.isDone()
+					&& this.stableLeadership.join() == roundNumber) {
+				DadkvsServer.debug(DadkvsServerState.class.getSimpleName(), "Lost stable leadership of round %d", roundNumber);
+				this.stableLeadership = null;
+			}
+		}
+	}
+
+	public CompletableFuture<Boolean> runStablePaxosPhase1(int roundNumber, int fromInstance) {
+		int majority = (n_acceptors / 2) + 1;
+
+		DadkvsPaxos.PhaseOneRequest phaseOneRequest = DadkvsPaxos.PhaseOneRequest.newBuilder()
+				.setPhase1RoundNumber(roundNumber)
+				.setPhase1Index(fromInstance)
+				.setPhase1Config(this.getCurrentConfig())
+				.setPhase1Allinstances(true)
+				.setPhase1Proposer(my_id)
+				.build();
+
+		QuorumCollector<DadkvsPaxos.PhaseOneReply> phaseOneCollector = new QuorumCollector<>(
+				n_acceptors, majority, DadkvsPaxos.PhaseOneReply::getPhase1Accepted);
+
+		// sends PREPARE(n = roundNumber) for every instance >= fromInstance to all acceptors
+		for (DadkvsPaxosServiceGrpc.DadkvsPaxosServiceStub acceptor : getAcceptors()) {
+			acceptor.phaseone(phaseOneRequest, phaseOneCollector.newObserver());
+		}
+		DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
+				"Sent stable PREPARE of round number %d from paxosInstance %d", roundNumber, fromInstance);
+
+		return phaseOneCollector.getResult(getQuorumTimeout()).thenApply(result -> {
+			if (!result.isReached()) {
+				DadkvsServer.debug(this.getClass().getSimpleName(),
+						"Did not receive majority of stable promises for round number " + roundNumber);
+				return false;
+			}
+			// for each instance, adopt the accepted value with the greatest write_ts
+			Map<Integer, DadkvsPaxos.AcceptedInstance> adopted = new HashMap<>();
+			for (DadkvsPaxos.PhaseOneReply reply : result.getAccepted()) {
+				for (DadkvsPaxos.AcceptedInstance accepted : reply.getPhase1AcceptedinstancesList()) {
+					DadkvsPaxos.AcceptedInstance current = adopted.get(accepted.getIndex());
+					if (current == null || accepted.getTimestamp() > current.getTimestamp()) {
+						adopted.put(accepted.getIndex(), accepted);
+					}
+				}
+			}
+			DadkvsServer.debug(this.getClass().getSimpleName(),
+					"Received majority of stable promises for round number %d, recovered %d values", roundNumber, adopted.size());
+			this.recoveredValues.clear();
+			for (DadkvsPaxos.AcceptedInstance accepted : adopted.values()) {
+				this.recoveredValues.put(accepted.getIndex(),
+						new PaxosValue(new ArrayList<>(accepted.getBatchList()), accepted.getOvertake()));
+			}
+			return true;
+		});
+	}
+
+	// completes with the value to propose in phase 2, or null if there was no majority of promises
+	public CompletableFuture<PaxosValue> runPaxosPhase1(int roundNumber, List<Integer> batch, int paxosInstance) {
 		int majority = (n_acceptors / 2) + 1;
 
 		// constructs request
@@ -144,218 +471,667 @@ public class DadkvsServerState {
 				.setPhase1RoundNumber(roundNumber)
 				.setPhase1Index(paxosInstance)
 				.setPhase1Config(this.getCurrentConfig())
+				.setPhase1Proposer(my_id)
 				.build();
 
-		ArrayList<DadkvsPaxos.PhaseOneReply> phaseOneReplies = new ArrayList<>();
-		GenericResponseCollector<DadkvsPaxos.PhaseOneReply> phaseOneCollector = new GenericResponseCollector<>(
-				phaseOneReplies, n_acceptors);
+		QuorumCollector<DadkvsPaxos.PhaseOneReply> phaseOneCollector = new QuorumCollector<>(
+				n_acceptors, majority, DadkvsPaxos.PhaseOneReply::getPhase1Accepted);
 
 		// sends PREPARE(n = roundNumber) to all acceptors
 		int i = getCurrentConfig();
 		for (DadkvsPaxosServiceGrpc.DadkvsPaxosServiceStub acceptor : getAcceptors()) {
-			
-			CollectorStreamObserver<DadkvsPaxos.PhaseOneReply> phaseOneObserver = new CollectorStreamObserver<>(
-					phaseOneCollector);
-
 			DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
 					"Sending PREPARE of round number %d on paxosInstance %d to acceptor %d\n", roundNumber, paxosInstance, i);
 			i++;
-			acceptor.phaseone(phaseOneRequest, phaseOneObserver);
+			acceptor.phaseone(phaseOneRequest, phaseOneCollector.newObserver());
 		}
 
-		// waits for majority of replies
-		phaseOneCollector.waitForTarget(majority);
-
-		// check if majority of replies are received
-		int promisesCounter = 0;
-		// let's see if any write_ts if different from -1, if so, we adopt its reqId
-		int new_reqId = reqId; // let's check if there is a greater one
-		int maxReadTs = -1;
-		for (DadkvsPaxos.PhaseOneReply reply : phaseOneReplies) {
-			if (reply.getPhase1Accepted()) {
-				promisesCounter++;
-
+		// completes once a majority of promises (or of rejections) is known
+		return phaseOneCollector.getResult(getQuorumTimeout()).thenApply(result -> {
+			if (!result.isReached()) {
+				DadkvsServer.debug(this.getClass().getSimpleName(),
+						"Did not receive majority of promises for round number " + roundNumber);
+				return null;
+			}
+			// let's see if any write_ts if different from -1, if so, we adopt its batch
+			PaxosValue new_value = null; // let's check if there is a greater one
+			int maxReadTs = -1;
+			for (DadkvsPaxos.PhaseOneReply reply : result.getAccepted()) {
 				// check if a promise has a greater timestamp in which case adopt its
 				// reqid/value
 				if (reply.getPhase1Timestamp() > maxReadTs) {
 					DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
-							"Found a greater timestamp: %d, replacing reqId %d with %d", reply.getPhase1Timestamp(), new_reqId, reply.getPhase1Reqid());
+							"Found a greater timestamp: %d, replacing batch %s with %s", reply.getPhase1Timestamp(), batch, reply.getPhase1BatchList());
 					maxReadTs = reply.getPhase1Timestamp();
-					new_reqId = reply.getPhase1Reqid();
+					new_value = new PaxosValue(new ArrayList<>(reply.getPhase1BatchList()), reply.getPhase1Overtake());
 				}
 			}
-		}
-		if (promisesCounter >= majority) {
 			DadkvsServer.debug(this.getClass().getSimpleName(),
 					"Received majority of promises for round number " + roundNumber);
-			// sets the reqId in the paxosState to the reqId that was accepted
-			this.paxosInstances.get(paxosInstance).setCurrentReqId(new_reqId);
-		} else {
-			DadkvsServer.debug(this.getClass().getSimpleName(),
-					"Did not receive majority of promises for round number " + roundNumber);
-		}
-
-		return promisesCounter >= majority;
+			// the value that was accepted (if any) is the one to propose
+			if (new_value == null) {
+				new_value = new PaxosValue(batch, computeOvertake(batch, paxosInstance));
+			}
+			return new_value;
+		});
 	}
 
-	public boolean runPaxosPhase2(int roundNumber, int reqId, DadkvsMain.CommitRequest request, int paxosInstance) {
+	public CompletableFuture<Boolean> runPaxosPhase2(int roundNumber, PaxosValue value, int paxosInstance) {
 		int majority = (n_acceptors / 2) + 1;
+		List<Integer> batch = value.getBatch();
+		int reqId = batch.get(0);
 
 		// constructs request
 		DadkvsPaxos.PhaseTwoRequest phaseTwoRequest = DadkvsPaxos.PhaseTwoRequest.newBuilder()
 				.setPhase2RoundNumber(roundNumber)
 				.setPhase2Reqid(reqId)
+				.addAllPhase2Batch(batch)
+				.setPhase2Overtake(value.getOvertake())
 				.setPhase2Index(paxosInstance)
 				.setPhase2Config(this.getCurrentConfig())
+				.setPhase2Proposer(my_id)
 				.build();
 
-		ArrayList<DadkvsPaxos.PhaseTwoReply> phaseTwoReplies = new ArrayList<>();
-		GenericResponseCollector<DadkvsPaxos.PhaseTwoReply> phaseTwoCollector = new GenericResponseCollector<>(
-				phaseTwoReplies, n_acceptors);
+		QuorumCollector<DadkvsPaxos.PhaseTwoReply> phaseTwoCollector = new QuorumCollector<>(
+				n_acceptors, majority, DadkvsPaxos.PhaseTwoReply::getPhase2Accepted);
 
 		// sends ACCEPT to all acceptors
 		int i = getCurrentConfig();
 		for (DadkvsPaxosServiceGrpc.DadkvsPaxosServiceStub acceptor : getAcceptors()) {
-			CollectorStreamObserver<DadkvsPaxos.PhaseTwoReply> phaseTwoObserver = new CollectorStreamObserver<>(
-					phaseTwoCollector);
-
 			DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
 					"Sending ACCEPT of round number %d to acceptor %d with reqid %d\n", roundNumber, i , reqId);
 			i++;
-			acceptor.phasetwo(phaseTwoRequest, phaseTwoObserver);
+			acceptor.phasetwo(phaseTwoRequest, phaseTwoCollector.newObserver());
 		}
 
-		// waits for majority of replies
-		phaseTwoCollector.waitForTarget(majority);
-
-		// check if majority of replies are received
-		int acceptsCounter = 0;
-		for (DadkvsPaxos.PhaseTwoReply reply : phaseTwoReplies) {
-			if (reply.getPhase2Accepted()) {
-				acceptsCounter++;
+		// completes once a majority of accepts (or of rejections) is known
+		return phaseTwoCollector.getResult(getQuorumTimeout()).thenApply(result -> {
+			if (result.isReached()) {
+				DadkvsServer.debug(this.getClass().getSimpleName(),
+						"Received majority of accepts for round number " + roundNumber);
+			} else {
+				DadkvsServer.debug(this.getClass().getSimpleName(),
+						"Did not receive majority of accepts for round number " + roundNumber);
 			}
-		}
-		if (acceptsCounter >= majority) {
-			DadkvsServer.debug(this.getClass().getSimpleName(),
-					"Received majority of accepts for round number " + roundNumber);
-			return true;
-		} else {
-			DadkvsServer.debug(this.getClass().getSimpleName(),
-					"Did not receive majority of accepts for round number " + roundNumber);
-		}
-
-		return acceptsCounter >= majority;
+			return result.isReached();
+		});
 	}
-	
 
-	public boolean learn(int roundNumber, int reqId, int paxosInstance) {
+	public CompletableFuture<Boolean> learn(int roundNumber, List<Integer> batch, int overtake, int paxosInstance) {
 		// constructs request
 		int majority = (n_acceptors / 2) + 1;
+		int reqId = batch.get(0);
 
 		DadkvsPaxos.LearnRequest learnRequest = DadkvsPaxos.LearnRequest.newBuilder()
 				.setLearnroundnumber(roundNumber)
 				.setLearnreqid(reqId)
+				.addAllLearnbatch(batch)
+				.setLearnovertake(overtake)
 				.setLearnindex(paxosInstance)
+				.setLearnlowwatermark(this.lowWatermark)
+				.setLearnacceptor(my_id)
 				.build();
 
-		ArrayList<DadkvsPaxos.LearnReply> learnReplies = new ArrayList<>();
-		GenericResponseCollector<DadkvsPaxos.LearnReply> learnCollector = new GenericResponseCollector<>(
-				learnReplies, n_servers);
+		// every reply tells how far that server has applied, late ones included
+		QuorumCollector<DadkvsPaxos.LearnReply> learnCollector = new QuorumCollector<DadkvsPaxos.LearnReply>(
+				n_servers, n_acceptors, DadkvsPaxos.LearnReply::getLearnaccepted).onResponse(this::recordApplied);
 
 		// sends LEARN to all servers
 		for (int i = 0; i < n_servers; i++) {
-			DadkvsPaxosServiceGrpc.DadkvsPaxosServiceStub paxosStub = paxosStubs[i];
-			CollectorStreamObserver<DadkvsPaxos.LearnReply> learnObserver = new CollectorStreamObserver<>(
-					learnCollector);
-
 			DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
 					"Sending LEARN of round number %d to server %d with reqid %d\n", roundNumber, i, reqId);
-
-			paxosStub.learn(learnRequest, learnObserver);
+			paxosStubs[i].learn(learnRequest, learnCollector.newObserver());
 		}
 
-
-		// waits for replies
-		learnCollector.waitForTarget(n_acceptors);
-
 		// check if majority of replies are received
-		int learnsCounter = 0;
-		for (DadkvsPaxos.LearnReply reply : learnReplies) {
-			if (reply.getLearnaccepted()) {
-				learnsCounter++;
+		return learnCollector.getResult(getQuorumTimeout()).thenApply(result -> {
+			int learnsCounter = result.getAccepted().size();
+			if (learnsCounter >= majority) {
+				DadkvsServer.debug(this.getClass().getSimpleName(),
+						"Received majority of learns for round number " + roundNumber);
+			} else {
+				DadkvsServer.debug(this.getClass().getSimpleName(),
+						"Did not receive majority of learns for round number " + roundNumber);
 			}
-		}
-		if (learnsCounter >= majority) {
-			DadkvsServer.debug(this.getClass().getSimpleName(),
-					"Received majority of learns for round number " + roundNumber);
-		} else {
-			DadkvsServer.debug(this.getClass().getSimpleName(),
-					"Did not receive majority of learns for round number " + roundNumber);
-		}
-		return learnsCounter >= majority;
+			return learnsCounter >= majority;
+		});
 	}
 
-
-	public synchronized void commitRequest(int learnreqid, int paxosInstance) {
-		// we check if the request is already in the total order list (already committed)
-		for (Map.Entry<Integer, Boolean> entry : totalOrderList) {
-			if (entry.getKey() == learnreqid) {
+	// overtake: how many instances right before this one the batch does not conflict with, it only
+	// waits for the instances before those (0 waits for all of them)
+	public synchronized void commitRequest(List<Integer> batch, int paxosInstance, int overtake) {
+		DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
+				"Committing batch %s in paxosInstance %d\n", batch, paxosInstance);
+		// waits for our turn and for every request of the batch to be known; a lagging replica
+		// may receive the learns of a request it doesn't know about yet
+		long stuckSince = System.currentTimeMillis();
+		while (true) {
+			if (paxosInstance < expectedInstanceNumber || this.appliedAhead.containsKey(paxosInstance)) {
+				// every acceptor sends its own LEARN, the instance was already applied
 				DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
-					"Request with reqid %d is already in total order list", learnreqid);
+						"Paxos instance %d is already applied", paxosInstance);
 				return;
 			}
-		}
-		DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
-		"Committing request with reqId %d in paxosInstance %d\n", learnreqid, paxosInstance);
-		while (paxosInstance != expectedInstanceNumber) {
+			if (paxosInstance - overtake <= expectedInstanceNumber && isBatchKnown(batch)) {
+				break;
+			}
+			// if nothing moves for a while, the missing instances are pulled from another replica
+			// instead of waiting for a client to resend the requests
+			if (System.currentTimeMillis() - stuckSince >= this.config.getCatchUpDelay()) {
+				startCatchUp();
+				stuckSince = System.currentTimeMillis();
+			}
 			try {
 				DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
-						"Waiting for paxos instance %d to finish", expectedInstanceNumber);
-				wait();
+						"Waiting for paxos instance %d to finish and for batch %s", expectedInstanceNumber, batch);
+				wait(this.config.getCatchUpDelay());
 			} catch (InterruptedException e) {
-				// Handle exception
+				DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
+						"Error waiting for batch %s: %s\n", batch, e.getMessage());
 			}
 		}
-		// there is a case with a lagging replica that receives the learns of a request it doesn't know about yet
-		// so we need to check if the request is in the pendingCommits; if it isn't, we wait for the commit to be placed
+		applyInstance(batch, paxosInstance, null);
+	}
 
-		while (!this.pendingCommits.containsKey(learnreqid)) {
+	// applies the batch decided for an instance in the order it was decided (with the lock held), and records
+	// it (with the transactions themselves) in the decided log other replicas catch up from. An instance after
+	// the expected one waits in appliedAhead until the instances before it are applied. requests: the
+	// transactions of the batch when they come with it (from another replica's decided log), else null
+	private void applyInstance(List<Integer> batch, int paxosInstance, Map<Integer, DadkvsMain.CommitRequest> requests) {
+		this.store.markDirty();
+		DadkvsPaxos.DecidedInstance decided = applyBatch(batch, paxosInstance, requests);
+		if (paxosInstance > this.expectedInstanceNumber) {
 			DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
-					"Request with reqid %d is not in pendingCommits, waiting for it", learnreqid);
-			try {
-				wait();
-			} catch (InterruptedException e) {
+					"Applied paxos instance %d ahead of instance %d", paxosInstance, this.expectedInstanceNumber);
+			this.appliedAhead.put(paxosInstance, decided);
+			notifyAll();
+			return;
+		}
+		int interval = this.config.getSnapshotInterval();
+		boolean snapshotDue = false;
+		while (decided != null) {
+			this.decidedLog.add(decided);
+			this.decidedFootprints.remove(this.expectedInstanceNumber);
+			snapshotDue |= interval > 0 && this.expectedInstanceNumber % interval == 0;
+			expectedInstanceNumber++;
+			decided = this.appliedAhead.remove(this.expectedInstanceNumber);
+		}
+		if (this.store.isMultiVersion()) {
+			this.store.setLowWatermark(this.expectedInstanceNumber - 1 - this.config.getMvccWindow());
+		}
+		// instances applied ahead leave the store between two instances until the ones before them arrive
+		if (this.appliedAhead.isEmpty()) {
+			this.store.markApplied(this.expectedInstanceNumber - 1);
+		}
+		notifyAll();
+
+		if (snapshotDue) {
+			// only the copy is taken here, it is encoded and written while commits go on
+			StoreSnapshot checkpoint = takeCheckpoint();
+			this.snapshot_writer.execute(() -> saveCheckpoint(checkpoint));
+		}
+	}
+
+	// the transactions go to the apply engine in runs, a configuration change (a write to key 0) is
+	// committed alone after the run before it, and whether this replica may still propose is checked
+	// right after it. Every request of the batch is recorded in the decided instance, the ones already
+	// applied too, so a replica catching up from it gets the same batch and skips the same requests
+	private DadkvsPaxos.DecidedInstance applyBatch(List<Integer> batch, int paxosInstance,
+			Map<Integer, DadkvsMain.CommitRequest> requests) {
+		DadkvsPaxos.DecidedInstance.Builder decided = DadkvsPaxos.DecidedInstance.newBuilder().setIndex(paxosInstance);
+		List<Integer> runReqIds = new ArrayList<>();
+		List<TransactionRecord> run = new ArrayList<>();
+		for (int learnreqid : batch) {
+			if (this.commitIndex.contains(learnreqid) || runReqIds.contains(learnreqid)) {
+				int appliedIn = this.commitIndex.contains(learnreqid) ? this.commitIndex.getInstance(learnreqid) : paxosInstance;
 				DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
-						"Error waiting for request with reqid %d: %s\n", learnreqid, e.getMessage());
+					"Request with reqid %d was already applied in instance %d", learnreqid, appliedIn);
+				DadkvsMain.CommitRequest applied = findAppliedRequest(learnreqid, appliedIn, paxosInstance, requests, decided.getCommitsList());
+				// a request only a snapshot still knows about is in the snapshot of whoever catches up
+				if (applied != null) {
+					decided.addCommits(applied);
+				}
+				continue;
 			}
+			DadkvsServer.debug(this.getClass().getSimpleName(),
+					"Committing request with reqId: " + learnreqid +
+					" | Global timestamp (Paxos Instance): " + paxosInstance);
+			DadkvsMain.CommitRequest request = this.pendingCommits.remove(learnreqid);
+			if (request == null && requests != null) {
+				request = requests.get(learnreqid);
+			}
+			decided.addCommits(request);
+			TransactionRecord txRecord = TransactionRecord.of(request, paxosInstance);
+			if (!txRecord.writes(0)) {
+				runReqIds.add(learnreqid);
+				run.add(txRecord);
+				continue;
+			}
+			applyRun(runReqIds, run, paxosInstance);
+			boolean commitResult = this.store.commit(txRecord);
+			if (commitResult && !canIPropose()) {
+				i_am_leader = false;
+			}
+			finishCommit(learnreqid, paxosInstance, commitResult);
 		}
-		DadkvsServer.debug(this.getClass().getSimpleName(),
-        "Committing request with reqId: " + learnreqid +
-        " | Global timestamp (Paxos Instance): " + paxosInstance);
-		DadkvsMain.CommitRequest request = this.pendingCommits.get(learnreqid);
-		TransactionRecord txRecord = new TransactionRecord(request.getKey1(), request.getVersion1(), request.getKey2(),
-				request.getVersion2(), request.getWritekey(), request.getWriteval(), paxosInstance);
-		boolean commitResult = this.store.commit(txRecord);
-		if (commitResult) {
-			if(txRecord.getPrepareKey() == 0){
-				if (!canIPropose()) {
-					i_am_leader = false;
-				}
+		applyRun(runReqIds, run, paxosInstance);
+		return decided.build();
+	}
+
+	// the transaction of a request applied before, from the instance being applied, the one that came
+	// with it, or the decided instance it was applied in; null if none of them has it any more
+	private DadkvsMain.CommitRequest findAppliedRequest(int reqId, int appliedIn, int paxosInstance,
+			Map<Integer, DadkvsMain.CommitRequest> requests, List<DadkvsMain.CommitRequest> applying) {
+		if (requests != null && requests.containsKey(reqId)) {
+			return requests.get(reqId);
+		}
+		List<DadkvsMain.CommitRequest> commits = applying;
+		if (appliedIn != paxosInstance) {
+			DadkvsPaxos.DecidedInstance appliedInstance = this.appliedAhead.get(appliedIn);
+			if (appliedInstance == null && appliedIn >= this.decidedLogStart
+					&& appliedIn - this.decidedLogStart < this.decidedLog.size()) {
+				appliedInstance = this.decidedLog.get(appliedIn - this.decidedLogStart);
+			}
+			if (appliedInstance == null) {
+				return null;
+			}
+			commits = appliedInstance.getCommitsList();
+		}
+		for (DadkvsMain.CommitRequest request : commits) {
+			if (request.getReqid() == reqId) {
+				return request;
 			}
-			this.pendingCommits.remove(learnreqid);
+		}
+		return null;
+	}
+
+	private void applyRun(List<Integer> runReqIds, List<TransactionRecord> run, int paxosInstance) {
+		boolean[] outcomes = this.applyEngine.apply(run, this.store);
+		for (int t = 0; t < outcomes.length; t++) {
+			finishCommit(runReqIds.get(t), paxosInstance, outcomes[t]);
+		}
+		runReqIds.clear();
+		run.clear();
+	}
+
+	private void finishCommit(int learnreqid, int paxosInstance, boolean commitResult) {
+		if (commitResult) {
 			DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
 					"Transaction committed successfully for reqid %d\n", learnreqid);
 		} else {
 			DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
 					"Transaction failed to commit for reqid %d\n", learnreqid);
 		}
-		// prints total order list after the commit
-		totalOrderList.add(new AbstractMap.SimpleEntry<>(learnreqid, commitResult));
-		DadkvsServer.debug(DadkvsServerState.class.getSimpleName(), "Total order list: %s\n", this.totalOrderList);
-		expectedInstanceNumber++;
+		recordCommit(learnreqid, paxosInstance, commitResult);
+	}
+
+	// the store as it is after the last applied instance; only a view of it is frozen here, the entries
+	// are read from it when the snapshot is written, while commits go on. It may also hold instances
+	// applied ahead, their reqids are in the snapshot so they are not applied twice
+	public synchronized StoreSnapshot takeSnapshot() {
+		int[] reqIds = new int[this.commitIndex.size()];
+		boolean[] outcomes = new boolean[this.commitIndex.size()];
+		this.commitIndex.copyTo(reqIds, outcomes);
+		return new StoreSnapshot(this.expectedInstanceNumber - 1, this.store.freeze(), reqIds, outcomes);
+	}
+
+	// a delta with the pages written since the last checkpoint, or the whole store once the deltas
+	// would hold more entries than it (or after a snapshot was installed or a checkpoint failed)
+	private synchronized StoreSnapshot takeCheckpoint() {
+		int dirty = this.store.getDirtyPageCount();
+		long limit = Math.max(this.checkpointBaseEntries, 1L << KeyValueStore.PAGE_BITS);
+		if (this.checkpointFailed || dirty < 0 || this.checkpointDeltaEntries >= limit
+				|| (long) dirty << KeyValueStore.PAGE_BITS > limit) {
+			this.checkpointFailed = false;
+			this.store.clearDirtyPages();
+			// its entries are only counted once the snapshot writer has written them
+			StoreSnapshot snapshot = takeSnapshot();
+			this.checkpointDeltaEntries = 0;
+			this.checkpointCommitMark = this.commitIndex.getRecorded();
+			return snapshot;
+		}
+		int[][] pages = this.store.takeDirtyPages();
+		int commits = (int) Math.min(this.commitIndex.getRecorded() - this.checkpointCommitMark,
+				this.commitIndex.size());
+		int[] reqIds = new int[commits];
+		boolean[] outcomes = new boolean[commits];
+		this.commitIndex.copyLastTo(commits, reqIds, outcomes);
+		this.checkpointDeltaEntries += pages[1].length;
+		this.checkpointCommitMark = this.commitIndex.getRecorded();
+		return new StoreSnapshot(this.expectedInstanceNumber - 1, pages[0], pages[1], pages[2], pages[3], reqIds,
+				outcomes);
+	}
+
+	private Path getSnapshotPath() {
+		return Path.of(this.config.getWalDirectory(), "snapshot-" + my_id + ".bin");
+	}
+
+	private Path getDeltaPath() {
+		return Path.of(this.config.getWalDirectory(), "snapshot-" + my_id + ".delta");
+	}
+
+	// a full snapshot replaces the file and drops the deltas, a delta is appended to theirs. The decided
+	// log is only truncated up to a checkpoint whose whole chain is on disk
+	private void saveCheckpoint(StoreSnapshot checkpoint) {
+		if (!checkpoint.isDelta()) {
+			saveSnapshot(checkpoint);
+			return;
+		}
+		if (this.checkpointChainBroken) {
+			DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
+					"Dropped snapshot delta of paxos instance %d after a failed checkpoint", checkpoint.getInstance());
+			return;
+		}
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(getDeltaPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+			checkpoint.writeFramedTo(out);
+		} catch (IOException e) {
+			System.err.println("Error writing snapshot delta: " + e.getMessage());
+			this.checkpointChainBroken = true;
+			this.checkpointFailed = true;
+			return;
+		}
+		DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
+				"Wrote snapshot delta of paxos instance %d, %d pages", checkpoint.getInstance(),
+				checkpoint.getPages().length);
+		truncateDecidedLog(checkpoint.getInstance());
+	}
+
+	private void saveSnapshot(StoreSnapshot snapshot) {
+		Path path = getSnapshotPath();
+		Path partial = Path.of(path + ".tmp");
+		try {
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(partial))) {
+				snapshot.writeTo(out);
+			}
+			// a crash while writing never leaves a broken snapshot behind
+			Files.move(partial, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			// deltas left by a crash right before this are older than the snapshot and skipped
+			Files.deleteIfExists(getDeltaPath());
+		} catch (IOException e) {
+			System.err.println("Error writing snapshot: " + e.getMessage());
+			this.checkpointChainBroken = true;
+			this.checkpointFailed = true;
+			return;
+		} finally {
+			snapshot.release();
+		}
+		this.checkpointChainBroken = false;
+		DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
+				"Wrote snapshot of paxos instance %d", snapshot.getInstance());
+		setCheckpointBaseEntries(snapshot.getEntryCount());
+		truncateDecidedLog(snapshot.getInstance());
+	}
+
+	private synchronized void setCheckpointBaseEntries(int entries) {
+		this.checkpointBaseEntries = entries;
+	}
+
+	// lagging replicas that need older instances get the snapshot instead
+	private synchronized void truncateDecidedLog(int lastInstance) {
+		int drop = Math.min(lastInstance - this.decidedLogStart + 1, this.decidedLog.size());
+		if (drop <= 0) {
+			return;
+		}
+		this.decidedLog.subList(0, drop).clear();
+		this.decidedLogStart += drop;
+	}
+
+	private void loadSnapshot() throws IOException {
+		Path path = getSnapshotPath();
+		if (this.config.getSnapshotInterval() == 0 || !Files.exists(path)) {
+			return;
+		}
+		StoreSnapshot snapshot;
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+			snapshot = StoreSnapshot.readFrom(in);
+		}
+		// the deltas after it, up to a torn one left by a crash
+		List<StoreSnapshot> deltas = new ArrayList<>();
+		if (Files.exists(getDeltaPath())) {
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(Files.newInputStream(getDeltaPath())))) {
+				StoreSnapshot delta;
+				while ((delta = StoreSnapshot.readFramedFrom(in)) != null) {
+					if (delta.getInstance() > snapshot.getInstance()) {
+						deltas.add(delta);
+					}
+				}
+			}
+		}
+		installSnapshot(StoreSnapshot.merge(snapshot, deltas));
+	}
+
+	// the store opened as it was after an instance, with the outcome of the requests before it
+	private void recoverStore() {
+		int instance = this.store.getRecoveredInstance();
+		this.store.recoverCommits(this.commitIndex);
+		this.decidedLogStart = instance + 1;
+		this.expectedInstanceNumber = instance + 1;
+		if (!canIPropose()) {
+			i_am_leader = false;
+		}
+		DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
+				"Recovered the store at paxos instance %d", instance);
+	}
+
+	// jumps the store straight to the instance of the snapshot; the log is replayed from there
+	private synchronized void installSnapshot(StoreSnapshot snapshot) {
+		if (snapshot.getInstance() < this.expectedInstanceNumber) {
+			return;
+		}
+		// the instances applied ahead of the snapshot are lost with the old store, they are applied again
+		List<DadkvsPaxos.DecidedInstance> ahead = new ArrayList<>(
+				this.appliedAhead.tailMap(snapshot.getInstance(), false).values());
+		this.appliedAhead.clear();
+		this.store.markDirty();
+		this.store.install(snapshot.getKeys(), snapshot.getValues(), snapshot.getVersions());
+		// the store has no versions from before the snapshot
+		this.store.setLowWatermark(snapshot.getInstance());
+		this.commitIndex.clear();
+		for (int i = 0; i < snapshot.getReqIds().length; i++) {
+			// the snapshot does not say which instance each request was in, only that it is covered by it
+			recordCommit(snapshot.getReqIds()[i], snapshot.getInstance(), snapshot.getOutcomes()[i]);
+			this.pendingCommits.remove(snapshot.getReqIds()[i]);
+		}
+		this.store.markApplied(snapshot.getInstance());
+		this.decidedLog.clear();
+		this.decidedFootprints.keySet().removeIf(instance -> instance <= snapshot.getInstance());
+		this.decidedLogStart = snapshot.getInstance() + 1;
+		this.expectedInstanceNumber = snapshot.getInstance() + 1;
+		if (!canIPropose()) {
+			i_am_leader = false;
+		}
+		DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
+				"Installed snapshot of paxos instance %d", snapshot.getInstance());
+		for (DadkvsPaxos.DecidedInstance decided : ahead) {
+			reapplyDecidedInstance(decided);
+		}
 		notifyAll();
 	}
 
+	// asks the next server in turn to stream the instances from the first one this replica has not
+	// applied; only one catch-up runs at a time
+	private synchronized void startCatchUp() {
+		if (this.catchUpInFlight) {
+			return;
+		}
+		this.catchUpTarget = (this.catchUpTarget + 1) % n_servers;
+		if (this.catchUpTarget == my_id) {
+			this.catchUpTarget = (this.catchUpTarget + 1) % n_servers;
+		}
+		catchUpFrom(this.catchUpTarget);
+	}
+
+	private synchronized void catchUpFrom(int target) {
+		this.catchUpInFlight = true;
+		DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
+				"Catching up from server %d starting at paxos instance %d", target, this.expectedInstanceNumber);
+		DadkvsPaxos.CatchUpRequest request = DadkvsPaxos.CatchUpRequest.newBuilder()
+				.setCatchupfrom(this.expectedInstanceNumber)
+				.setCatchupreplica(my_id)
+				.build();
+		paxosStubs[target].catchup(request, new StreamObserver<DadkvsPaxos.DecidedInstance>() {
+			@Override
+			public void onNext(DadkvsPaxos.DecidedInstance decided) {
+				applyDecidedInstance(decided);
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				if (Status.fromThrowable(t).getCode() == Status.Code.OUT_OF_RANGE) {
+					// the instances we miss are only in the snapshot of that server now
+					installSnapshotFrom(target);
+					return;
+				}
+				DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
+						"Catch-up from server %d failed: %s", target, t.getMessage());
+				finishCatchUp();
+			}
+
+			@Override
+			public void onCompleted() {
+				finishCatchUp();
+			}
+		});
+	}
+
+	// streams a snapshot from the target and then replays its log from the snapshot's instance
+	private void installSnapshotFrom(int target) {
+		DadkvsServer.debug(DadkvsServerState.class.getSimpleName(), "Requesting a snapshot from server %d", target);
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		DadkvsPaxos.SnapshotRequest request = DadkvsPaxos.SnapshotRequest.newBuilder().setSnapshotreplica(my_id).build();
+		paxosStubs[target].snapshot(request, new StreamObserver<DadkvsPaxos.SnapshotChunk>() {
+			@Override
+			public void onNext(DadkvsPaxos.SnapshotChunk chunk) {
+				received.writeBytes(chunk.getSnapshotdata().toByteArray());
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
+						"Snapshot from server %d failed: %s", target, t.getMessage());
+				finishCatchUp();
+			}
+
+			@Override
+			public void onCompleted() {
+				try {
+					installSnapshot(StoreSnapshot.readFrom(new ByteArrayInputStream(received.toByteArray())));
+				} catch (IOException e) {
+					DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
+							"Invalid snapshot from server %d: %s", target, e.getMessage());
+					finishCatchUp();
+					return;
+				}
+				catchUpFrom(target);
+			}
+		});
+	}
+
+	private synchronized void finishCatchUp() {
+		this.catchUpInFlight = false;
+	}
+
+	private synchronized void applyDecidedInstance(DadkvsPaxos.DecidedInstance decided) {
+		if (decided.getIndex() != this.expectedInstanceNumber) {
+			// already applied meanwhile (or not the next one, which cannot happen on an ordered stream)
+			return;
+		}
+		DadkvsServer.debug(DadkvsServerState.class.getSimpleName(), "Caught up paxos instance %d", decided.getIndex());
+		reapplyDecidedInstance(decided);
+	}
+
+	// applies an instance decided elsewhere from the transactions recorded with it (with the lock held)
+	private void reapplyDecidedInstance(DadkvsPaxos.DecidedInstance decided) {
+		List<Integer> batch = new ArrayList<>();
+		Map<Integer, DadkvsMain.CommitRequest> requests = new HashMap<>();
+		for (DadkvsMain.CommitRequest request : decided.getCommitsList()) {
+			requests.putIfAbsent(request.getReqid(), request);
+			batch.add(request.getReqid());
+		}
+		applyInstance(batch, decided.getIndex(), requests);
+	}
+
+	// first instance still in the decided log, the ones before it are only in the snapshot
+	public synchronized int getDecidedLogStart() {
+		return this.decidedLogStart;
+	}
+
+	// up to max decided instances starting at fromInstance, for a replica that is catching up
+	public synchronized List<DadkvsPaxos.DecidedInstance> getDecidedInstances(int fromInstance, int max) {
+		int from = Math.max(fromInstance, this.decidedLogStart) - this.decidedLogStart;
+		int to = Math.min(this.decidedLog.size(), from + max);
+		if (from >= to) {
+			return new ArrayList<>();
+		}
+		return new ArrayList<>(this.decidedLog.subList(from, to));
+	}
+
+	private void recordApplied(DadkvsPaxos.LearnReply reply) {
+		int watermark;
+		synchronized (this.appliedInstances) {
+			int replica = reply.getLearnreplica();
+			if (replica < 0 || replica >= n_servers) {
+				return;
+			}
+			this.appliedInstances[replica] = Math.max(this.appliedInstances[replica], reply.getLearnapplied());
+			watermark = Integer.MAX_VALUE;
+			for (int applied : this.appliedInstances) {
+				watermark = Math.min(watermark, applied);
+			}
+		}
+		compact(watermark);
+	}
+
+	// discards the acceptor state of every instance <= watermark; called with the minimum instance
+	// applied by all servers (also propagated to the learners in each LEARN). Learn tallies need no
+	// cleanup, their ring slot is simply reused by a later instance
+	public void compact(int watermark) {
+		// never beyond what this replica applied itself
+		watermark = Math.min(watermark, getExpectedInstanceNumber() - 1);
+		synchronized (this.appliedInstances) {
+			if (watermark <= this.lowWatermark) {
+				return;
+			}
+			this.lowWatermark = watermark;
+		}
+		final int discardUpTo = watermark;
+		this.paxosInstances.keySet().removeIf(instance -> instance <= discardUpTo);
+		this.recoveredValues.keySet().removeIf(instance -> instance <= discardUpTo);
+		this.decidedFootprints.keySet().removeIf(instance -> instance <= discardUpTo);
+		if (this.config.getSnapshotInterval() == 0) {
+			// with no checkpoints nothing else bounds the decided log; every replica has these instances,
+			// one that loses them by restarting gets a snapshot streamed instead
+			truncateDecidedLog(discardUpTo);
+		}
+		this.acceptor_log.compact(discardUpTo);
+		DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
+				"Discarded paxos state up to instance %d, %d instances left", discardUpTo, this.paxosInstances.size());
+	}
+
+	// instances at or below the watermark are decided everywhere, acceptors must not recreate their state
+	public boolean isCompacted(int paxosInstance) {
+		return paxosInstance <= this.lowWatermark;
+	}
+
+	public int getLowWatermark() {
+		return this.lowWatermark;
+	}
+
+	public int getPaxosInstanceCount() {
+		return this.paxosInstances.size();
+	}
+
+	private boolean isBatchKnown(List<Integer> batch) {
+		for (int reqId : batch) {
+			if (!this.pendingCommits.containsKey(reqId) && !this.commitIndex.contains(reqId)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public boolean canIPropose(){
 		return my_id >= getCurrentConfig() && my_id < getCurrentConfig() + n_acceptors;
 	}
@@ -370,7 +1146,18 @@ public class DadkvsServerState {
 
 	public void setLeader(boolean leader) {
 		i_am_leader = leader;
+		// a new leadership always starts with a fresh phase 1
+		synchronized (this.stableLeaderLock) {
+			this.stableLeadership = null;
+		}
+		if (!leader) {
+			synchronized (this.leaseLock) {
+				this.leaseValidUntil = 0;
+			}
+		}
 		if (leader) {
+			releaseCompletions();
+			startLeaseRenewal();
 			DadkvsServer.debug(DadkvsServerState.class.getSimpleName(), "Setting leader and paxosCounter to %d\n", this.expectedInstanceNumber-1);
 			this.paxosCounter = this.expectedInstanceNumber-1;
         	DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
@@ -387,23 +1174,9 @@ public class DadkvsServerState {
 		return this.paxosCounter;
 	}
 
-	// get LEARN counter
-	public int getLearnCounter(int reqId, int roundNumber, int paxosInstance) {
-		LearnState learnState = new LearnState(reqId, paxosInstance, roundNumber);
-		if (learnCounter.containsKey(learnState)) {
-			System.out.println("LearnCounter: " + learnCounter.get(learnState));
-			// increment the value on the map learnCounter
-			learnCounter.put(learnState, learnCounter.get(learnState) + 1);
-			
-			return learnCounter.get(learnState);
-		}
-
-		else {
-			// create entry on the learn counter map
-			learnCounter.put(learnState, 1);
-			System.out.println("LearnCounter: " + learnCounter.get(learnState));
-			return 1;
-		}
+	// counts the LEARN of an acceptor, returns how many different acceptors sent it for this round
+	public int countLearn(int paxosInstance, int roundNumber, int acceptor) {
+		return this.learnTally.count(paxosInstance, roundNumber, acceptor);
 	}
 
 	public ManagedChannel[] getServerChannels() {
@@ -416,6 +1189,7 @@ public class DadkvsServerState {
 
 	public synchronized void addToPendingCommits(int reqId, DadkvsMain.CommitRequest request) {
 		this.pendingCommits.put(reqId, request);
+		// only instances waiting for their batch to be known wait on the lock, commits use whenApplied
 		notifyAll();
 	}
 
@@ -424,7 +1198,7 @@ public class DadkvsServerState {
 	private synchronized int generateRoundNumber(int paxosInstance) {
 		// need to generate unique proposal numbers
 		if (!this.paxosInstances.containsKey(paxosInstance)) {
-			this.paxosInstances.put(paxosInstance, new PaxosState(my_id, -1, -1, -1));
+			this.paxosInstances.put(paxosInstance, newPaxosState(my_id, paxosInstance));
 			return my_id;
 		}
 		int previousRound = this.paxosInstances.get(paxosInstance).getCurrentRoundNumber();
@@ -434,35 +1208,40 @@ public class DadkvsServerState {
 		return newRound;
 	}
 
-	public synchronized boolean waitForPaxosInstanceToFinish(int reqId) {
+	// completes with the instance the request was applied in, or with -1 if this server is (or
+	// becomes) the leader before that and has to run paxos for it itself
+	public synchronized CompletableFuture<Integer> whenApplied(int reqId) {
+		if (this.commitIndex.contains(reqId)) {
+			return CompletableFuture.completedFuture(this.commitIndex.getInstance(reqId));
+		}
+		if (isLeader()) {
+			DadkvsServer.debug(DadkvsServerState.class.getSimpleName(), "I AM THE LEADER NOW");
+			return CompletableFuture.completedFuture(-1);
+		}
+		return this.completions.computeIfAbsent(reqId, id -> new CompletableFuture<>());
+	}
 
-		// wait until the Paxos instance finishes or the leader changes
-		while (totalOrderList.stream().noneMatch(entry -> entry.getKey() == reqId)) {
-			if (isLeader()) {
-				DadkvsServer.debug(DadkvsServerState.class.getSimpleName(), "I AM THE LEADER NOW");
-				// became leader, transaction not committed yet
-				return false;
-			}
-			
-			try {
-				System.err.println("Waiting for Paxos instance to finish");
-				wait();
+	// with the lock held
+	private void recordCommit(int reqId, int paxosInstance, boolean committed) {
+		this.commitIndex.record(reqId, paxosInstance, committed);
+		this.store.logCommit(reqId, paxosInstance, committed);
+		CompletableFuture<Integer> waiting = this.completions.remove(reqId);
+		if (waiting != null) {
+			waiting.complete(paxosInstance);
+		}
+	}
 
-			} catch (InterruptedException e) {
-				DadkvsServer.debug(DadkvsServerState.class.getSimpleName(), "Error waiting for Paxos instance: %s\n",
-						e.getMessage());
-			}
-			//}
-	
-			System.out.println("Finished waiting for Paxos instance");
+	// the new leader runs paxos for the requests its followers' handlers were waiting on
+	private synchronized void releaseCompletions() {
+		for (CompletableFuture<Integer> waiting : this.completions.values()) {
+			waiting.complete(-1);
 		}
-	
-		return true;
+		this.completions.clear();
 	}
 
 
 	public synchronized int getNewPaxosInstance() {
-		System.out.println("1PaxosCounter: " + this.paxosCounter);
+		DadkvsServer.debug(DadkvsServerState.class.getSimpleName(), "Incrementing paxosCounter %d", this.paxosCounter);
 		return ++paxosCounter;
 	}
 	
@@ -471,25 +1250,358 @@ public class DadkvsServerState {
 		this.paxosCounter = paxosCounter;
 	}
 
-	public PaxosState getOrCreatePaxosState(int proposedRoundNumber, int paxosCounter) {
-		if (!this.paxosInstances.containsKey(paxosCounter)) {
-			this.paxosInstances.put(paxosCounter, new PaxosState(proposedRoundNumber, -1, -1, -1));
+	public synchronized PaxosState getOrCreatePaxosState(int proposedRoundNumber, int paxosCounter) {
+		// instances run concurrently when pipelining, so creation has to be atomic
+		return this.paxosInstances.computeIfAbsent(paxosCounter,
+				instance -> newPaxosState(proposedRoundNumber, instance));
+	}
+
+	// new instances inherit the promise made to a stable leader, if they are covered by it
+	private PaxosState newPaxosState(int roundNumber, int paxosInstance) {
+		int readTs = paxosInstance >= this.stablePromiseIndex ? this.stablePromiseRound : -1;
+		return new PaxosState(roundNumber, -1, readTs, -1);
+	}
+
+	// acceptor side of a PREPARE: promises the round if it is higher than any promised for the instance,
+	// under the lock promiseAllInstances takes; returns the accepted value to report, null if rejected
+	public synchronized PaxosState promise(PaxosState paxosState, int roundNumber) {
+		if (roundNumber <= paxosState.getReadTs()) {
+			return null;
 		}
-		return this.paxosInstances.get(paxosCounter);
+		paxosState.setReadTs(roundNumber);
+		return paxosState.copy();
 	}
 
-	public List<Map.Entry<Integer, Boolean>> getTotalOrderList() {
-		return this.totalOrderList;
+	// acceptor side of an ACCEPT: accepts the value if the round is the one promised for the instance
+	public synchronized boolean acceptValue(PaxosState paxosState, int roundNumber, List<Integer> batch, int overtake) {
+		if (roundNumber != paxosState.getReadTs()) {
+			return false;
+		}
+		paxosState.setWriteTs(roundNumber);
+		paxosState.setCurrentBatch(batch);
+		paxosState.setCurrentOvertake(overtake);
+		return true;
 	}
 
-	public void waitExponentialBackoff() {
-		// wait 5 seconds
-		try {
-			Thread.sleep(5000);
-		} catch (InterruptedException e) {
-			DadkvsServer.debug(DadkvsServerState.class.getSimpleName(), "Error waiting exponential backoff: %s\n",
-					e.getMessage());
+	// acceptor side of a stable leader PREPARE: promise roundNumber for every instance >= fromInstance
+	public synchronized boolean promiseAllInstances(int roundNumber, int fromInstance) {
+		if (roundNumber <= this.stablePromiseRound) {
+			return false;
+		}
+		for (Map.Entry<Integer, PaxosState> entry : this.paxosInstances.entrySet()) {
+			if (entry.getKey() >= fromInstance && entry.getValue().getReadTs() >= roundNumber) {
+				return false;
+			}
+		}
+		this.stablePromiseRound = roundNumber;
+		this.stablePromiseIndex = fromInstance;
+		for (Map.Entry<Integer, PaxosState> entry : this.paxosInstances.entrySet()) {
+			if (entry.getKey() >= fromInstance) {
+				entry.getValue().setReadTs(roundNumber);
+			}
+		}
+		return true;
+	}
+
+	// values this acceptor has accepted from fromInstance onward, reported in a stable leader PROMISE
+	public synchronized List<DadkvsPaxos.AcceptedInstance> getAcceptedInstances(int fromInstance) {
+		List<DadkvsPaxos.AcceptedInstance> accepted = new ArrayList<>();
+		for (Map.Entry<Integer, PaxosState> entry : this.paxosInstances.entrySet()) {
+			PaxosState paxosState = entry.getValue();
+			if (entry.getKey() >= fromInstance && paxosState.getWriteTs() >= 0) {
+				accepted.add(DadkvsPaxos.AcceptedInstance.newBuilder()
+						.setIndex(entry.getKey())
+						.setReqid(paxosState.getCurrentReqId())
+						.addAllBatch(paxosState.getCurrentBatch())
+						.setOvertake(paxosState.getCurrentOvertake())
+						.setTimestamp(paxosState.getWriteTs())
+						.build());
+			}
 		}
+		return accepted;
+	}
+
+	public synchronized int getExpectedInstanceNumber() {
+		return this.expectedInstanceNumber;
+	}
+
+	// highest instance whose transactions may be in the store: every one up to expectedInstanceNumber - 1,
+	// and the ones applied ahead of it
+	public synchronized int getAppliedInstance() {
+		return this.appliedAhead.isEmpty() ? this.expectedInstanceNumber - 1 : this.appliedAhead.lastKey();
+	}
+
+	// instance the first request of the batch was applied in, -1 if it was not applied here
+	private synchronized int getAppliedInstance(List<Integer> batch) {
+		return batch.isEmpty() ? -1 : this.commitIndex.getInstance(batch.get(0));
+	}
+
+	// reads the keys with the lock instances are applied under, so they all come from the store as it
+	// was after the same instance; returns that instance (as getAppliedInstance)
+	public synchronized int readKeys(List<Integer> keys, long[] slots) {
+		this.store.readKeys(keys, slots);
+		return getAppliedInstance();
+	}
+
+	// waits up to timeout ms for this replica to apply every instance up to paxosInstance
+	public synchronized boolean waitForApplied(int paxosInstance, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (this.expectedInstanceNumber - 1 < paxosInstance) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				break;
+			}
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		return this.expectedInstanceNumber - 1 >= paxosInstance;
+	}
+
+	public int getFollowerReadWait() {
+		return this.config.getFollowerReadWait();
+	}
+
+	// randomized exponential backoff shared by every retry of this proposer, reset when an instance
+	// is decided; the retry is scheduled after the delay instead of sleeping
+	public CompletableFuture<Void> exponentialBackoff(int paxosInstance) {
+		PaxosState paxosState = this.paxosInstances.get(paxosInstance);
+		if (paxosState != null) {
+			paxosState.incrementRetries();
+		}
+		return this.proposer_backoff.backoffAsync();
+	}
+
+	// footprint: keys of the decided batch, null if they are not known here
+	private void instanceDecided(int paxosInstance, KeyFootprint footprint) {
+		this.proposer_backoff.reset();
+		if (footprint != null && paxosInstance >= getExpectedInstanceNumber()) {
+			this.decidedFootprints.put(paxosInstance, footprint);
+		}
+		synchronized (this.leaseLock) {
+			this.lastDecidedInstance = Math.max(this.lastDecidedInstance, paxosInstance);
+		}
+		DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
+				"Paxos instance %d decided after %d retries", paxosInstance, getRetries(paxosInstance));
+	}
+
+	// fast path: how many instances right before paxosInstance the batch may be applied ahead of. They must
+	// be decided already, so no later leader can change them, and touch none of the batch's keys; instances
+	// this leader applied itself are not counted, a lagging replica still applies those first
+	private int computeOvertake(List<Integer> batch, int paxosInstance) {
+		if (!this.config.isFastPath()) {
+			return 0;
+		}
+		KeyFootprint footprint = getFootprint(batch);
+		if (footprint == null) {
+			return 0;
+		}
+		int applied = getExpectedInstanceNumber() - 1;
+		int overtake = 0;
+		for (int earlier = paxosInstance - 1; earlier > applied; earlier--) {
+			KeyFootprint decided = this.decidedFootprints.get(earlier);
+			if (decided == null || decided.conflictsWith(footprint)) {
+				break;
+			}
+			overtake++;
+		}
+		return overtake;
+	}
+
+	private synchronized KeyFootprint getFootprint(List<Integer> batch) {
+		List<DadkvsMain.CommitRequest> requests = new ArrayList<>();
+		for (int reqId : batch) {
+			DadkvsMain.CommitRequest request = this.pendingCommits.get(reqId);
+			if (request == null) {
+				return null;
+			}
+			requests.add(request);
+		}
+		return KeyFootprint.of(requests);
+	}
+
+	// number of extra rounds the proposer needed for an instance
+	public int getRetries(int paxosInstance) {
+		PaxosState paxosState = this.paxosInstances.get(paxosInstance);
+		return paxosState == null ? 0 : paxosState.getRetries();
+	}
+
+	// LEADER LEASE
+
+	public boolean isLeaseEnabled() {
+		return this.config.getLeaseDuration() > 0;
+	}
+
+	private void startLeaseRenewal() {
+		synchronized (this.leaseLock) {
+			if (this.leaseRenewing || !isLeaseEnabled()) {
+				return;
+			}
+			this.leaseRenewing = true;
+		}
+		this.proposer_executor.execute(this::renewLease);
+	}
+
+	// asks the acceptors for the lease again every third of its duration, for as long as we lead
+	private void renewLease() {
+		if (!isLeader()) {
+			synchronized (this.leaseLock) {
+				this.leaseRenewing = false;
+				this.leaseValidUntil = 0;
+			}
+			return;
+		}
+		int duration = this.config.getLeaseDuration();
+		if (getFreezeMode().isFrozen()) {
+			// a frozen leader stops renewing so its lease lapses and another replica can take over,
+			// it asks again once unfrozen if it still leads
+			synchronized (this.leaseLock) {
+				this.leaseValidUntil = 0;
+			}
+			CompletableFuture.delayedExecutor(Math.max(1, duration / 3), TimeUnit.MILLISECONDS, this.proposer_executor)
+					.execute(this::renewLease);
+			return;
+		}
+		int majority = (n_acceptors / 2) + 1;
+		// the acceptors count the lease from when they receive the request, so counting it from
+		// before sending it (and a bit shorter, for clock drift) keeps the leader on the safe side
+		long start = System.nanoTime();
+		DadkvsPaxos.LeaseRequest leaseRequest = DadkvsPaxos.LeaseRequest.newBuilder()
+				.setLeaseholder(my_id)
+				.setLeaseconfig(getCurrentConfig())
+				.setLeaseduration(duration)
+				.build();
+		QuorumCollector<DadkvsPaxos.LeaseReply> leaseCollector = new QuorumCollector<>(
+				n_acceptors, majority, DadkvsPaxos.LeaseReply::getLeasegranted);
+		for (DadkvsPaxosServiceGrpc.DadkvsPaxosServiceStub acceptor : getAcceptors()) {
+			acceptor.lease(leaseRequest, leaseCollector.newObserver());
+		}
+		leaseCollector.getResult(duration).thenAccept(result -> {
+			if (result.isReached() && isLeader()) {
+				synchronized (this.leaseLock) {
+					if (this.leaseValidUntil == 0 || System.nanoTime() - this.leaseValidUntil >= 0) {
+						// a new lease: values accepted under a previous leader may already be decided,
+						// reads wait for the highest of them to be applied
+						for (DadkvsPaxos.LeaseReply reply : result.getAccepted()) {
+							this.leaseReadIndex = Math.max(this.leaseReadIndex, reply.getLeaselastaccepted());
+						}
+						DadkvsServer.debug(DadkvsServerState.class.getSimpleName(),
+								"Acquired leader lease, reads wait for paxos instance %d", this.leaseReadIndex);
+					}
+					this.leaseValidUntil = start + TimeUnit.MILLISECONDS.toNanos(duration) * 9 / 10;
+				}
+			}
+			CompletableFuture.delayedExecutor(Math.max(1, duration / 3), TimeUnit.MILLISECONDS, this.proposer_executor)
+					.execute(this::renewLease);
+		});
+	}
+
+	private boolean holdsLease() {
+		synchronized (this.leaseLock) {
+			return this.leaseValidUntil != 0 && System.nanoTime() - this.leaseValidUntil < 0;
+		}
+	}
+
+	// true once the leader may answer a read from its store: it holds the lease and has applied
+	// every instance decided so far; false if that does not happen within the quorum timeout
+	public boolean waitForLeaseRead() {
+		int readIndex;
+		synchronized (this.leaseLock) {
+			if (!isLeader() || !holdsLease()) {
+				return false;
+			}
+			readIndex = Math.max(this.leaseReadIndex, this.lastDecidedInstance);
+		}
+		long deadline = System.currentTimeMillis() + Math.max(1, getQuorumTimeout());
+		synchronized (this) {
+			while (this.expectedInstanceNumber - 1 < readIndex) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+		}
+		return isLeader() && holdsLease();
+	}
+
+	// acceptor side: grants the lease unless another server holds one that has not expired yet
+	public boolean grantLease(int leaseHolder, int duration) {
+		long now = System.nanoTime();
+		synchronized (this.leaseLock) {
+			if (this.leaseGrantedTo != leaseHolder && this.leaseGrantedTo >= 0 && now - this.leaseGrantedUntil < 0) {
+				return false;
+			}
+			this.leaseGrantedTo = leaseHolder;
+			this.leaseGrantedUntil = now + TimeUnit.MILLISECONDS.toNanos(duration);
+			return true;
+		}
+	}
+
+	// acceptor side: while a lease holds, only its holder may run paxos
+	public boolean isLeaseHeldByOther(int proposer) {
+		synchronized (this.leaseLock) {
+			return this.leaseGrantedTo >= 0 && this.leaseGrantedTo != proposer
+					&& System.nanoTime() - this.leaseGrantedUntil < 0;
+		}
+	}
+
+	// the server reads should be sent to, -1 if not known here
+	public int getLeaseHolder() {
+		if (isLeader() && holdsLease()) {
+			return my_id;
+		}
+		synchronized (this.leaseLock) {
+			if (this.leaseGrantedTo >= 0 && System.nanoTime() - this.leaseGrantedUntil < 0) {
+				return this.leaseGrantedTo;
+			}
+		}
+		return -1;
+	}
+
+	// highest instance this acceptor accepted a value for, reported when granting a lease
+	public int getLastAcceptedInstance() {
+		int last = 0;
+		for (Map.Entry<Integer, PaxosState> entry : this.paxosInstances.entrySet()) {
+			if (entry.getValue().getWriteTs() >= 0) {
+				last = Math.max(last, entry.getKey());
+			}
+		}
+		return last;
+	}
+
+	public AcceptorLog getAcceptorLog() {
+		return this.acceptor_log;
+	}
+
+	public ProposerExecutor getProposerExecutor() {
+		return this.proposer_executor;
+	}
+
+	public int getCommitQueueCapacity() {
+		return this.config.getCommitQueueCapacity();
+	}
+
+	public long getQuorumTimeout() {
+		return this.config.getQuorumTimeout();
+	}
+
+	public int getPipelineWindow() {
+		return this.config.getPipelineWindow();
+	}
+
+	public int getBatchSize() {
+		return this.config.getBatchSize();
+	}
+
+	public int getBatchDelay() {
+		return this.config.getBatchDelay();
 	}
 
 	public int getNumberOfAcceptors() {
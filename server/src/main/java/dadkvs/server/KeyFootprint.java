@@ -0,0 +1,50 @@
+package dadkvs.server;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import dadkvs.DadkvsMain;
+
+// the keys a batch of transactions reads and writes; two batches commute (can be applied in
+// any order with the same result) when neither writes a key the other reads or writes
+class KeyFootprint {
+    private final Set<Integer> reads;
+    private final Set<Integer> writes;
+
+    private KeyFootprint() {
+        this.reads = new HashSet<>();
+        this.writes = new HashSet<>();
+    }
+
+    // null if the batch writes key 0: a configuration change must keep its place in the order
+    static KeyFootprint of(Iterable<DadkvsMain.CommitRequest> requests) {
+        KeyFootprint footprint = new KeyFootprint();
+        for (DadkvsMain.CommitRequest request : requests) {
+            TransactionRecord tr = TransactionRecord.of(request, -1);
+            if (tr.writes(0)) {
+                return null;
+            }
+            for (int key : tr.getReadKeys()) {
+                footprint.reads.add(key);
+            }
+            for (int key : tr.getWriteKeys()) {
+                footprint.writes.add(key);
+            }
+        }
+        return footprint;
+    }
+
+    boolean conflictsWith(KeyFootprint other) {
+        for (int key : this.writes) {
+            if (other.reads.contains(key) || other.writes.contains(key)) {
+                return true;
+            }
+        }
+        for (int key : other.writes) {
+            if (this.reads.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,54 +1,640 @@
 package dadkvs.server;
 
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// a sparse store of int keys: only the keys ever written take space, in an open-addressing hash table
+// (linear probing) of primitive arrays. Every key has one long slot packing (value, version), value
+// in the high half and version in the low half, so neither reads nor commits allocate; a key never
+// written reads as (0, 0). Keys are non-negative.
+//
+// Reads (and getConfig) take no lock. An entry is published by writing its slot before its key, and a
+// slot is written with a single atomic store, so a reader that finds the key sees either the old or
+// the new pair. Writers (commits, snapshots) are serialized by the store's monitor. A transaction
+// writing several keys, and an install, publish their writes under a sequence number that is odd while
+// they are half done; readKeys retries when it changes under it, so it sees them whole or not at all.
+//
+// When the table fills up, a table twice as large replaces it, but the entries are moved over a few
+// buckets at a time by the writes that follow, so no write waits for the whole table to be copied.
+// While they move, writes only go to the new table and the old one no longer changes; readers look
+// in the new table first and then in the old one.
+//
+// A multi-version store also keeps, for every key, the slots it held since the low watermark (oldest
+// first, the latest one included), so a key can be read as it was after any instance from the low
+// watermark on. The version of a slot is the paxos instance that wrote it. The chains are never
+// changed, a write publishes a new one (before the slot), trimmed of the versions below the watermark
+//
+// A snapshot is copied from a view frozen under the monitor: it walks the live store while commits go
+// on, and every write keeps the slot its key had before in each open view, so the view reads the store
+// as it was when it was frozen
 public class KeyValueStore {
-    private int size;
-    private VersionedValue[] values;
+    public static final String HEAP = "heap";     // the slots are in this hash table, on the heap
+    public static final String MAPPED = "mapped"; // the slots are in a memory-mapped file (MappedKeyValueStore)
+
+    // a page holds 2^PAGE_BITS consecutive keys; checkpoints write out the pages written since the last one
+    public static final int PAGE_BITS = 8;
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    // buckets of the old table every write moves to the new one while a resize is going on
+    private static final int MIGRATE_STEP = 64;
+
+    // the store as it was when it was frozen, to be copied without holding up the commits
+    public interface View {
+        // every key that did not hold (0, 0), once each, in no particular order
+        void forEach(EntryConsumer consumer) throws IOException;
+
+        // the writes stop keeping slots for it; it may be called more than once
+        void close();
+    }
+
+    public interface EntryConsumer {
+        void accept(int key, long slot) throws IOException;
+    }
+
+    // walks the live slots of the keys a view may hold
+    protected interface Walk {
+        void forEach(EntryConsumer consumer) throws IOException;
+    }
+
+    private class FrozenView implements View {
+        private final Walk walk;
+        // the slot every key written since the freeze had before, (0, 0) if it had none
+        private final ConcurrentHashMap<Integer, Long> preserved = new ConcurrentHashMap<>();
+        private volatile boolean invalid;
+
+        FrozenView(Walk walk) {
+            this.walk = walk;
+        }
+
+        @Override
+        public void forEach(EntryConsumer consumer) throws IOException {
+            this.walk.forEach((key, slot) -> {
+                // checked after the live slot was read: a write keeps the old slot before replacing it
+                Long before = this.preserved.get(key);
+                long frozen = before != null ? before : slot;
+                if (this.invalid) {
+                    throw new IOException("the store was replaced while it was being copied");
+                }
+                if (frozen != 0L) {
+                    consumer.accept(key, frozen);
+                }
+            });
+        }
+
+        @Override
+        public void close() {
+            views.remove(this);
+        }
+    }
+
+    private static class Table {
+        // key + 1 of every bucket, 0 if the bucket is empty
+        final AtomicIntegerArray keys;
+        final AtomicLongArray slots;
+        // the version chain of every bucket, null if the store keeps only the latest versions
+        final AtomicReferenceArray<long[]> history;
+        final int mask;
+        // the table being emptied into this one, null once every entry has moved
+        volatile Table previous;
+
+        Table(int capacity, boolean multiversion) {
+            this.keys = new AtomicIntegerArray(capacity);
+            this.slots = new AtomicLongArray(capacity);
+            this.history = multiversion ? new AtomicReferenceArray<>(capacity) : null;
+            this.mask = capacity - 1;
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        // the bucket of the key, or of the empty bucket where it would go
+        int find(int k) {
+            int stored = k + 1;
+            int i = hash(k) & mask;
+            while (true) {
+                int key = keys.get(i);
+                if (key == stored || key == 0) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        long[] historyOf(int k) {
+            int i = find(k);
+            return keys.get(i) == k + 1 ? history.get(i) : null;
+        }
+    }
+
+    // a new table is published together with the one it replaces, readers get both from one read
+    private volatile Table table;
+    // next bucket of table.previous to move
+    private int migrated;
+    // entries in table
+    private int count;
+    private final boolean multiversion;
+    // reads at an instance below it may find versions already trimmed
+    private volatile int lowWatermark;
+    // pages written since the last checkpoint, all of them until a first full one
+    private final BitSet dirtyPages = new BitSet();
+    private boolean allDirty = true;
+    // odd while writes that go together are being published, bumped only under the monitor
+    private volatile long publishing;
+    // views still being copied
+    private final CopyOnWriteArrayList<FrozenView> views = new CopyOnWriteArrayList<>();
+
+    public KeyValueStore() {
+        this(false);
+    }
+
+    public KeyValueStore(boolean multiversion) {
+        this(DEFAULT_CAPACITY, multiversion);
+    }
+
+    // expected_keys is only a hint, the table grows past it
+    public KeyValueStore(int expected_keys) {
+        this(expected_keys, false);
+    }
+
+    public KeyValueStore(int expected_keys, boolean multiversion) {
+        this.multiversion = multiversion;
+        this.table = new Table(capacityFor(expected_keys), multiversion);
+    }
+
+    public static long pack(int value, int version) {
+        return ((long) value << 32) | (version & 0xFFFFFFFFL);
+    }
 
-    public KeyValueStore(int n_entries) {
-        this.size = n_entries;
-        this.values = new VersionedValue[n_entries];
-        for (int i = 0; i < n_entries; i++) {
-            this.values[i] = new VersionedValue(0, 0);
+    public static int valueOf(long slot) {
+        return (int) (slot >> 32);
+    }
+
+    public static int versionOf(long slot) {
+        return (int) slot;
+    }
+
+    private static int hash(int k) {
+        int h = k * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // a power of two that keeps n entries under the 3/4 load factor
+    private static int capacityFor(int n) {
+        int capacity = 16;
+        while (capacity < (1 << 30) && capacity * 3L / 4 <= n) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    public int getConfig(){
+        return valueOf(readPacked(0));
+    }
+
+    // the packed (value, version) of a key, without allocating
+    public long readPacked(int k) {
+        if (k < 0) {
+            return 0L;
+        }
+        Table current = this.table;
+        // previous is read first: if it is null then, every entry has reached current already
+        Table old = current.previous;
+        // the bucket found empty may have been taken by another key since, so the key is checked again
+        int i = current.find(k);
+        if (current.keys.get(i) == k + 1) {
+            return current.slots.get(i);
+        }
+        if (old != null) {
+            // the key has not been moved yet; the old table does not change any more
+            i = old.find(k);
+            if (old.keys.get(i) == k + 1) {
+                return old.slots.get(i);
+            }
+        }
+        return 0L;
+    }
+
+    // the packed slots of the keys, with no transaction half written among them
+    public void readKeys(List<Integer> keys, long[] slots) {
+        readKeysAt(keys, -1, slots);
+    }
+
+    // as readKeys, as of the instance (readAt); -1 for the latest versions
+    public void readKeysAt(List<Integer> keys, int instance, long[] slots) {
+        while (true) {
+            long published = this.publishing;
+            if ((published & 1) == 0) {
+                for (int i = 0; i < slots.length; i++) {
+                    slots[i] = instance < 0 ? readPacked(keys.get(i)) : readAt(keys.get(i), instance);
+                }
+                if (this.publishing == published) {
+                    return;
+                }
+            }
+            Thread.onSpinWait();
         }
     }
 
-    synchronized  public int getConfig(){
-        return values[0].getValue();
+    // under the monitor: readKeys sees the writes until endPublish all together or none of them
+    protected void beginPublish() {
+        this.publishing++;
+    }
+
+    protected void endPublish() {
+        this.publishing++;
+    }
+
+    public boolean isMultiVersion() {
+        return multiversion;
+    }
+
+    // the versions below the watermark are dropped as their keys are written again; it never goes back
+    public void setLowWatermark(int instance) {
+        if (instance > this.lowWatermark) {
+            this.lowWatermark = instance;
+        }
+    }
+
+    // whether the store still has every version a read at the instance needs; checked after the read,
+    // the versions it found were only trimmed if the watermark has passed the instance since
+    public boolean isReadableAt(int instance) {
+        return this.multiversion && instance >= this.lowWatermark;
+    }
+
+    // the packed (value, version) of a key as it was after the instance was applied, (0, 0) if it had
+    // not been written yet; without versions, the latest one. Every instance up to this one must have
+    // been applied, and the result only holds if isReadableAt(instance) afterwards
+    public long readAt(int k, int instance) {
+        if (!this.multiversion) {
+            return readPacked(k);
+        }
+        if (k < 0) {
+            return 0L;
+        }
+        Table current = this.table;
+        Table old = current.previous;
+        long[] chain = current.historyOf(k);
+        if (chain == null && old != null) {
+            chain = old.historyOf(k);
+        }
+        if (chain == null) {
+            return 0L;
+        }
+        for (int e = chain.length - 1; e >= 0; e--) {
+            if (versionOf(chain[e]) <= instance) {
+                return chain[e];
+            }
+        }
+        return 0L;
+    }
+
+    // the chain after a write of the slot: the versions written after the watermark, the newest one
+    // before it (what a read at the watermark sees) and the new one. A second write in the same
+    // instance replaces the first, a read at the instance sees the instance whole
+    private long[] appendVersion(long[] chain, long slot) {
+        if (chain == null) {
+            return new long[] { slot };
+        }
+        int watermark = this.lowWatermark;
+        int first = 0;
+        for (int e = chain.length - 1; e >= 0; e--) {
+            if (versionOf(chain[e]) <= watermark) {
+                first = e;
+                break;
+            }
+        }
+        int last = chain.length;
+        if (versionOf(chain[last - 1]) >= versionOf(slot)) {
+            last--;
+        }
+        int kept = Math.max(0, last - first);
+        long[] appended = new long[kept + 1];
+        System.arraycopy(chain, first, appended, 0, kept);
+        appended[kept] = slot;
+        return appended;
     }
 
-    synchronized public VersionedValue read(int k) {
-        if (k < size) {
-            return values[k];
+    // a copy of the slot, callers cannot change the store through it
+    public VersionedValue read(int k) {
+        if (k >= 0) {
+            long slot = readPacked(k);
+            return new VersionedValue(valueOf(slot), versionOf(slot));
         } else {
             return null;
         }
     }
 
-    synchronized public boolean write(int k, VersionedValue v) {
-        if (k < size) {
-            values[k] = v;
-            return true;
-        } else
+    synchronized public boolean write(int k, int value, int version) {
+        if (k < 0) {
             return false;
+        }
+        migrateStep();
+        put(k, pack(value, version));
+        markWritten(k);
+        return true;
     }
 
-    synchronized public boolean commit(TransactionRecord tr) {
-        DadkvsServer.debug(KeyValueStore.class.getSimpleName(),
-                "store commit read first key = %d with version = %d and current version = %d\n", tr.getRead1Key(),
-                tr.getRead1Version(), this.read(tr.getRead1Key()).getVersion());
-        DadkvsServer.debug(KeyValueStore.class.getSimpleName(),
-                "store commit read second key = %d with version = %d and current version = %d\n", tr.getRead2Key(),
-                tr.getRead2Version(), this.read(tr.getRead2Key()).getVersion());
-        DadkvsServer.debug(KeyValueStore.class.getSimpleName(),
-                "store commit write key = %d with value = %d and version %d\n", tr.getPrepareKey(),
-                tr.getPrepareValue(), tr.getTimestamp());
-        if (this.read(tr.getRead1Key()).getVersion() == tr.getRead1Version() &&
-                this.read(tr.getRead2Key()).getVersion() == tr.getRead2Version()) {
-            VersionedValue vv = new VersionedValue(tr.getPrepareValue(), tr.getTimestamp());
-            this.write(tr.getPrepareKey(), vv);
-            return true;
-        } else {
+    public boolean write(int k, VersionedValue v) {
+        return write(k, v.getValue(), v.getVersion());
+    }
+
+    // under the monitor; a key still in the old table is written to the new one, shadowing it
+    private void put(int k, long slot) {
+        if (!this.views.isEmpty()) {
+            preserve(k, readPacked(k));
+        }
+        Table current = this.table;
+        int i = current.find(k);
+        if (current.keys.get(i) != 0) {
+            if (this.multiversion) {
+                current.history.set(i, appendVersion(current.history.get(i), slot));
+            }
+            current.slots.set(i, slot);
+            return;
+        }
+        long[] chain = null;
+        if (this.multiversion) {
+            // a key not moved yet brings its older versions along
+            Table old = current.previous;
+            chain = appendVersion(old == null ? null : old.historyOf(k), slot);
+        }
+        if ((this.count + 1) * 4L > current.capacity() * 3L) {
+            grow();
+            current = this.table;
+            i = current.find(k);
+        }
+        if (this.multiversion) {
+            current.history.set(i, chain);
+        }
+        current.slots.set(i, slot);
+        // the key goes last, readers that find it see the slot
+        current.keys.set(i, k + 1);
+        this.count++;
+    }
+
+    private void grow() {
+        // the previous resize is finished before the next one starts, it is far along by now anyway
+        finishMigration();
+        Table current = this.table;
+        if (current.capacity() == 1 << 30) {
+            throw new IllegalStateException("key value store is full");
+        }
+        Table bigger = new Table(current.capacity() * 2, this.multiversion);
+        bigger.previous = current;
+        this.migrated = 0;
+        this.count = 0;
+        this.table = bigger;
+    }
+
+    // moves the next buckets of the old table, skipping keys written to the new table since
+    private void migrateStep() {
+        Table current = this.table;
+        Table old = current.previous;
+        if (old == null) {
+            return;
+        }
+        int end = Math.min(this.migrated + MIGRATE_STEP, old.capacity());
+        for (int b = this.migrated; b < end; b++) {
+            int stored = old.keys.get(b);
+            if (stored == 0) {
+                continue;
+            }
+            int i = current.find(stored - 1);
+            if (current.keys.get(i) == 0) {
+                if (this.multiversion) {
+                    current.history.set(i, old.history.get(b));
+                }
+                current.slots.set(i, old.slots.get(b));
+                current.keys.set(i, stored);
+                this.count++;
+            }
+        }
+        this.migrated = end;
+        if (end == old.capacity()) {
+            current.previous = null;
+        }
+    }
+
+    // number of keys written so far
+    synchronized public int getSize() {
+        finishMigration();
+        return this.count;
+    }
+
+    private void finishMigration() {
+        while (this.table.previous != null) {
+            migrateStep();
+        }
+    }
+
+    // the store as it is now, read later while commits go on; the view must be closed once copied
+    synchronized public View freeze() {
+        // the frozen table only gains keys from now on, it is never emptied into another one
+        finishMigration();
+        Table frozen = this.table;
+        return openView(consumer -> {
+            for (int b = 0; b < frozen.capacity(); b++) {
+                int stored = frozen.keys.get(b);
+                if (stored != 0) {
+                    consumer.accept(stored - 1, frozen.slots.get(b));
+                }
+            }
+        });
+    }
+
+    // under the monitor
+    protected View openView(Walk walk) {
+        FrozenView view = new FrozenView(walk);
+        this.views.add(view);
+        return view;
+    }
+
+    // under the monitor, before the slot of the key changes: the open views keep the one it had
+    protected void preserve(int k, long slot) {
+        for (FrozenView view : this.views) {
+            view.preserved.putIfAbsent(k, slot);
+        }
+    }
+
+    // under the monitor: the open views can no longer be read, the store they walk was replaced
+    protected void invalidateViews() {
+        for (FrozenView view : this.views) {
+            view.invalid = true;
+        }
+    }
+
+    protected boolean hasViews() {
+        return !this.views.isEmpty();
+    }
+
+    // copies the keys not holding (0, 0) out as {keys, values, versions}, the commits wait only for
+    // the copy
+    synchronized public int[][] copyEntries() {
+        finishMigration();
+        Table current = this.table;
+        int entries = 0;
+        for (int b = 0; b < current.capacity(); b++) {
+            if (current.keys.get(b) != 0 && current.slots.get(b) != 0L) {
+                entries++;
+            }
+        }
+        int[] keys = new int[entries];
+        int[] values = new int[entries];
+        int[] versions = new int[entries];
+        int e = 0;
+        for (int b = 0; b < current.capacity(); b++) {
+            long slot = current.slots.get(b);
+            if (current.keys.get(b) != 0 && slot != 0L) {
+                keys[e] = current.keys.get(b) - 1;
+                values[e] = valueOf(slot);
+                versions[e] = versionOf(slot);
+                e++;
+            }
+        }
+        return new int[][] { keys, values, versions };
+    }
+
+    // replaces the whole content with the one of a snapshot; readers switch to it at once. Only the
+    // latest versions come with it, the low watermark must be moved up to the snapshot's instance
+    synchronized public void install(int[] snapshot_keys, int[] snapshot_values, int[] snapshot_versions) {
+        Table fresh = new Table(capacityFor(snapshot_keys.length), this.multiversion);
+        for (int e = 0; e < snapshot_keys.length; e++) {
+            int i = fresh.find(snapshot_keys[e]);
+            long slot = pack(snapshot_values[e], snapshot_versions[e]);
+            if (this.multiversion) {
+                fresh.history.set(i, new long[] { slot });
+            }
+            fresh.slots.set(i, slot);
+            fresh.keys.set(i, snapshot_keys[e] + 1);
+        }
+        beginPublish();
+        this.table = fresh;
+        this.count = snapshot_keys.length;
+        endPublish();
+        // the tables the open views walk no longer change, their slots need no keeping any more
+        this.views.clear();
+        markAllWritten();
+    }
+
+    // under the monitor
+    protected void markWritten(int k) {
+        this.dirtyPages.set(k >>> PAGE_BITS);
+    }
+
+    protected void markAllWritten() {
+        this.allDirty = true;
+    }
+
+    // pages written since the last checkpoint, -1 if the next one must hold the whole store
+    synchronized public int getDirtyPageCount() {
+        return this.allDirty ? -1 : this.dirtyPages.cardinality();
+    }
+
+    // the whole store goes in this checkpoint, only the writes from now on go in the next one
+    synchronized public void clearDirtyPages() {
+        this.dirtyPages.clear();
+        this.allDirty = false;
+    }
+
+    // the pages written since the last checkpoint and the keys in them not holding (0, 0), as
+    // {pages, keys, values, versions}, or null if the whole store must be checkpointed. The writes from
+    // now on go in the next one
+    synchronized public int[][] takeDirtyPages() {
+        if (this.allDirty) {
+            return null;
+        }
+        int[] pages = this.dirtyPages.stream().toArray();
+        int entries = 0;
+        for (int page : pages) {
+            for (long k = (long) page << PAGE_BITS; k < (long) (page + 1) << PAGE_BITS; k++) {
+                if (readPacked((int) k) != 0L) {
+                    entries++;
+                }
+            }
+        }
+        int[] keys = new int[entries];
+        int[] values = new int[entries];
+        int[] versions = new int[entries];
+        int e = 0;
+        for (int page : pages) {
+            for (long k = (long) page << PAGE_BITS; k < (long) (page + 1) << PAGE_BITS; k++) {
+                long slot = readPacked((int) k);
+                if (slot != 0L) {
+                    keys[e] = (int) k;
+                    values[e] = valueOf(slot);
+                    versions[e] = versionOf(slot);
+                    e++;
+                }
+            }
+        }
+        this.dirtyPages.clear();
+        return new int[][] { pages, keys, values, versions };
+    }
+
+    // the last instance applied in order that the store still held when it was opened, -1 if it starts
+    // empty; the heap store never outlives its process
+    public int getRecoveredInstance() {
+        return -1;
+    }
+
+    // the request outcomes kept together with the recovered store
+    public void recoverCommits(CommitIndex index) {
+    }
+
+    // an instance starts being applied, the store no longer matches a single instance until markApplied
+    public void markDirty() {
+    }
+
+    // every instance up to this one, and none after it, is in the store
+    public void markApplied(int instance) {
+    }
+
+    // the outcome of a request applied, to be recovered with the store
+    public void logCommit(int reqId, int instance, boolean committed) {
+    }
+
+    // the transaction commits if every key it read still has the version it was read at; then all of its
+    // writes are applied, published together. A key that cannot be written aborts it before anything is
+    // written
+    public boolean commit(TransactionRecord tr) {
+        boolean valid = true;
+        // only the writes take the writers' lock: commits come from the apply thread, or from the apply
+        // workers running transactions that do not conflict, so no other commit changes the keys read
+        for (int i = 0; i < tr.getReadKeys().length && valid; i++) {
+            int version = versionOf(this.readPacked(tr.getReadKeys()[i]));
+            valid = version == tr.getReadVersions()[i];
+        }
+        for (int k : tr.getWriteKeys()) {
+            valid &= k >= 0;
+        }
+        if (!valid) {
             return false;
         }
+        if (tr.getWriteKeys().length == 1) {
+            writeAll(tr);
+            return true;
+        }
+        synchronized (this) {
+            beginPublish();
+            try {
+                writeAll(tr);
+            } finally {
+                endPublish();
+            }
+        }
+        return true;
+    }
+
+    private void writeAll(TransactionRecord tr) {
+        for (int i = 0; i < tr.getWriteKeys().length; i++) {
+            this.write(tr.getWriteKeys()[i], tr.getWriteValues()[i], tr.getTimestamp());
+        }
     }
 }
@@ -0,0 +1,256 @@
+package dadkvs.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+// compares the store against the fully synchronized store of VersionedValue objects it replaced:
+// read throughput, with reader threads doing a read and a getConfig (as phaseone/phasetwo do) per
+// operation while one thread keeps writing like the apply thread does, then the heap taken by a
+// large store and the bytes allocated per write, then the same keys spread over the whole keyspace,
+// which the old store could not hold, together with the longest write while the store grows. The
+// memory-mapped store goes through the same runs, and last a restart is timed: loading a snapshot
+// into the heap store against reopening the mapped files
+public class KeyValueStoreBenchmark {
+
+	private interface Store {
+		int getConfig();
+
+		int readVersion(int k);
+
+		void write(int k, int value, int version);
+	}
+
+	// the previous implementation: one object per key, replaced on every write, and every call takes
+	// the store's monitor
+	private static class LockedStore implements Store {
+		private final VersionedValue[] values;
+
+		LockedStore(int n_entries) {
+			this.values = new VersionedValue[n_entries];
+			for (int i = 0; i < n_entries; i++) {
+				this.values[i] = new VersionedValue(0, 0);
+			}
+		}
+
+		public synchronized int getConfig() {
+			return values[0].getValue();
+		}
+
+		public synchronized int readVersion(int k) {
+			return values[k].getVersion();
+		}
+
+		public synchronized void write(int k, int value, int version) {
+			values[k] = new VersionedValue(value, version);
+		}
+	}
+
+	private static class PackedStore implements Store {
+		private final KeyValueStore store;
+
+		// the same keys as the locked store, written once so they all take space; the store starts
+		// small and grows while they are written
+		PackedStore(int n_entries) {
+			this(new KeyValueStore(), n_entries, 1);
+		}
+
+		// n keys, stride apart
+		PackedStore(KeyValueStore store, int n_entries, int stride) {
+			this.store = store;
+			for (int i = 0; i < n_entries; i++) {
+				this.store.write(i * stride, 0, 0);
+			}
+		}
+
+		public int getConfig() {
+			return store.getConfig();
+		}
+
+		public int readVersion(int k) {
+			return KeyValueStore.versionOf(store.readPacked(k));
+		}
+
+		public void write(int k, int value, int version) {
+			store.write(k, value, version);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int readers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int millis = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int keys = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		int footprint_keys = args.length > 3 ? Integer.parseInt(args[3]) : 1000000;
+		Path directory = args.length > 4 ? Path.of(args[4]) : Files.createTempDirectory("store-benchmark");
+
+		System.out.println("readers = " + readers + " duration = " + millis + " ms keys = " + keys
+				+ " footprint keys = " + footprint_keys + " directory = " + directory);
+		// the first round only warms up the JIT
+		run("warmup", new LockedStore(keys), readers, millis / 4, keys);
+		run("warmup", new PackedStore(keys), readers, millis / 4, keys);
+		run("locked", new LockedStore(keys), readers, millis, keys);
+		run("packed", new PackedStore(keys), readers, millis, keys);
+		run("mapped", new PackedStore(mapped(directory, "run"), keys, 1), readers, millis, keys);
+
+		footprint("locked", () -> new LockedStore(footprint_keys), footprint_keys, 1);
+		footprint("packed", () -> new PackedStore(footprint_keys), footprint_keys, 1);
+		int stride = Integer.MAX_VALUE / footprint_keys;
+		footprint("sparse", () -> new PackedStore(new KeyValueStore(), footprint_keys, stride), footprint_keys, stride);
+		footprint("mapped", () -> new PackedStore(mapped(directory, "footprint"), footprint_keys, 1), footprint_keys, 1);
+		growth(footprint_keys, stride);
+		restart(directory, footprint_keys);
+
+		if (args.length <= 4) {
+			try (Stream<Path> files = Files.list(directory)) {
+				for (Path file : files.toList()) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(directory);
+		}
+	}
+
+	private static MappedKeyValueStore mapped(Path directory, String name) throws IOException {
+		return new MappedKeyValueStore(directory.resolve(name + ".slots"), directory.resolve(name + ".meta"), 1000);
+	}
+
+	// time from nothing in memory to a store answering reads, for n keys written
+	private static void restart(Path directory, int keys) throws IOException {
+		KeyValueStore heap = new KeyValueStore();
+		MappedKeyValueStore mapped = mapped(directory, "restart");
+		for (int k = 0; k < keys; k++) {
+			heap.write(k, k, 1);
+			mapped.write(k, k, 1);
+		}
+		mapped.markApplied(1);
+		int[][] entries = heap.copyEntries();
+		Path snapshot_path = directory.resolve("restart.snapshot");
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(snapshot_path))) {
+			new StoreSnapshot(1, entries[0], entries[1], entries[2], new int[0], new boolean[0]).writeTo(out);
+		}
+
+		long start = System.nanoTime();
+		StoreSnapshot snapshot;
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(snapshot_path))) {
+			snapshot = StoreSnapshot.readFrom(in);
+		}
+		KeyValueStore loaded = new KeyValueStore(snapshot.getKeys().length);
+		loaded.install(snapshot.getKeys(), snapshot.getValues(), snapshot.getVersions());
+		long heap_time = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		MappedKeyValueStore reopened = mapped(directory, "restart");
+		long mapped_time = System.nanoTime() - start;
+
+		System.out.printf("%-8s %10.1f ms to load a snapshot of %d keys (key %d = %d)%n", "restart", heap_time / 1e6,
+				keys, keys - 1, KeyValueStore.valueOf(loaded.readPacked(keys - 1)));
+		System.out.printf("%-8s %10.1f ms to reopen the mapped store at instance %d (key %d = %d)%n", "restart",
+				mapped_time / 1e6, reopened.getRecoveredInstance(), keys - 1,
+				KeyValueStore.valueOf(reopened.readPacked(keys - 1)));
+	}
+
+	private static void run(String name, Store store, int readers, int millis, int keys) throws InterruptedException {
+		AtomicBoolean running = new AtomicBoolean(true);
+		long[] reads = new long[readers];
+		Thread[] workers = new Thread[readers];
+		for (int t = 0; t < readers; t++) {
+			int id = t;
+			workers[t] = new Thread(() -> {
+				ThreadLocalRandom rnd = ThreadLocalRandom.current();
+				long done = 0;
+				long sum = 0;
+				while (running.get()) {
+					sum += store.readVersion(rnd.nextInt(keys)) + store.getConfig();
+					done++;
+				}
+				reads[id] = done + (sum == 42 ? 1 : 0);
+			});
+		}
+		long[] writes = new long[1];
+		Thread writer = new Thread(() -> {
+			ThreadLocalRandom rnd = ThreadLocalRandom.current();
+			int version = 0;
+			while (running.get()) {
+				store.write(1 + rnd.nextInt(keys - 1), rnd.nextInt(1000), ++version);
+			}
+			writes[0] = version;
+		});
+
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		writer.start();
+		Thread.sleep(millis);
+		running.set(false);
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		writer.join();
+
+		long total = 0;
+		for (long done : reads) {
+			total += done;
+		}
+		double seconds = millis / 1e3;
+		System.out.printf("%-8s %14.0f reads/s %12.0f writes/s%n", name, total / seconds, writes[0] / seconds);
+	}
+
+	private interface StoreFactory {
+		Store create() throws IOException;
+	}
+
+	// heap retained by a store of n keys (stride apart), and bytes this thread allocates per write into it
+	private static void footprint(String name, StoreFactory factory, int keys, int stride) throws IOException {
+		long before = usedHeap();
+		Store store = factory.create();
+		long retained = usedHeap() - before;
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		int writes = 1000000;
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		long allocated_before = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < writes; i++) {
+			store.write(rnd.nextInt(keys) * stride, i, i);
+		}
+		long allocated = threads.getThreadAllocatedBytes(thread) - allocated_before;
+
+		System.out.printf("%-8s %10.1f MB for %d keys %8.1f bytes allocated per write (config %d)%n", name,
+				retained / 1e6, keys, (double) allocated / writes, store.getConfig());
+	}
+
+	// the slowest writes while an empty store grows to n keys; a resize that copied the whole table at
+	// once would show up in the tail. The longest one also includes any GC pause
+	private static void growth(int keys, int stride) {
+		KeyValueStore store = new KeyValueStore();
+		long[] latencies = new long[keys];
+		long start = System.nanoTime();
+		for (int i = 0; i < keys; i++) {
+			long before = System.nanoTime();
+			store.write(i * stride, i, i);
+			latencies[i] = System.nanoTime() - before;
+		}
+		long total = System.nanoTime() - start;
+		Arrays.sort(latencies);
+		System.out.printf("%-8s %10.1f ms to write %d new keys, p99.99 %.1f us, longest %.1f us (size %d)%n",
+				"growth", total / 1e6, keys, latencies[(int) (keys * 0.9999)] / 1e3, latencies[keys - 1] / 1e3,
+				store.getSize());
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,83 @@
+package dadkvs.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// LEARN counts of the most recent paxos instances, kept in a ring of primitive words so that
+// counting a LEARN allocates nothing and takes no lock.
+// Each instance has a few ways (one per round seen) and each way packs
+// [round: 32 bits | generation: 22 bits | acceptor bitmask: 10 bits], where the generation
+// (instance / number of slots) tells apart the instances that share a slot.
+public class LearnTally {
+    private static final int WAYS = 4;
+    private static final int ACCEPTOR_BITS = 10;
+    private static final long ACCEPTOR_MASK = (1L << ACCEPTOR_BITS) - 1;
+    private static final long GENERATION_MASK = (1L << 22) - 1;
+
+    private final int slotBits;
+    private final int slotMask;
+    private final AtomicLongArray words;
+
+    public LearnTally(int slotBits) {
+        this.slotBits = slotBits;
+        this.slotMask = (1 << slotBits) - 1;
+        this.words = new AtomicLongArray(WAYS << slotBits);
+    }
+
+    // registers the LEARN sent by acceptor for (instance, round) and returns how many different
+    // acceptors sent it; a repeated LEARN is not counted again, 0 means the instance is too old
+    public int count(int paxosInstance, int roundNumber, int acceptor) {
+        if (acceptor < 0 || acceptor >= ACCEPTOR_BITS) {
+            return 0;
+        }
+        long generation = (paxosInstance >>> this.slotBits) & GENERATION_MASK;
+        long tag = ((long) roundNumber << 32) | (generation << ACCEPTOR_BITS);
+        long bit = 1L << acceptor;
+        int base = (paxosInstance & this.slotMask) * WAYS;
+
+        while (true) {
+            int victim = -1;
+            long victimWord = 0;
+            boolean retry = false;
+            for (int way = 0; way < WAYS && !retry; way++) {
+                long word = this.words.get(base + way);
+                long acceptors = word & ACCEPTOR_MASK;
+                if (acceptors != 0 && (word & ~ACCEPTOR_MASK) == tag) {
+                    if ((acceptors & bit) != 0) {
+                        return Long.bitCount(acceptors);
+                    }
+                    if (this.words.compareAndSet(base + way, word, word | bit)) {
+                        return Long.bitCount(acceptors | bit);
+                    }
+                    retry = true;
+                    continue;
+                }
+                long wordGeneration = (word >>> ACCEPTOR_BITS) & GENERATION_MASK;
+                if (acceptors != 0 && wordGeneration > generation) {
+                    // the slot already moved on to a later instance
+                    return 0;
+                }
+                // prefer the first free or outdated way, then the lowest round of this instance
+                boolean free = acceptors == 0 || wordGeneration < generation;
+                boolean victimFree = victim >= 0 && ((victimWord & ACCEPTOR_MASK) == 0
+                        || ((victimWord >>> ACCEPTOR_BITS) & GENERATION_MASK) < generation);
+                if (victim < 0 || (free && !victimFree)
+                        || (!free && !victimFree && (word >>> 32) < (victimWord >>> 32))) {
+                    victim = way;
+                    victimWord = word;
+                }
+            }
+            if (retry) {
+                continue;
+            }
+            boolean victimFree = (victimWord & ACCEPTOR_MASK) == 0
+                    || ((victimWord >>> ACCEPTOR_BITS) & GENERATION_MASK) < generation;
+            if (!victimFree && (victimWord >>> 32) > (roundNumber & 0xFFFFFFFFL)) {
+                // every way holds a higher round of this instance, this one is superseded
+                return 0;
+            }
+            if (this.words.compareAndSet(base + victim, victimWord, tag | bit)) {
+                return 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package dadkvs.server;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// a store whose slots live in a memory-mapped file instead of the heap: the slot of key k is the long
+// at byte 8 * k, so the file is as large as the highest key written but only the pages holding written
+// keys take disk and memory (the file is sparse). The file is mapped in chunks of 2^27 keys (1 GiB),
+// each one the first time one of its keys is written. Reads take no lock, a slot is read and written
+// with a single atomic access, as in the heap store. There is a single version per key.
+//
+// The file is the state itself: a small meta file next to it records the last instance applied in
+// order, whether an instance was being applied (the slots are then half way between two instances),
+// and the outcome of the most recent requests, as the commit index keeps them, and which pages of
+// 2^PAGE_BITS keys were ever written, so sizing, copying and installing only visit those. A replica
+// restarted after its process stopped continues from there without loading anything. The pages
+// written are left to the operating system, so after the machine itself crashes the files must be deleted
+public class MappedKeyValueStore extends KeyValueStore {
+    private static final int MAGIC = 0x444b4d53; // "DKMS"
+    // format 1 had no page bitmap
+    private static final int FORMAT = 2;
+    private static final int CHUNK_BITS = 27;
+    private static final int CHUNK_KEYS = 1 << CHUNK_BITS;
+    private static final int CHUNKS = 1 << (31 - CHUNK_BITS);
+    private static final long CHUNK_BYTES = (long) CHUNK_KEYS * Long.BYTES;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+
+    // meta file: [magic | format | applied instance | clean | ring capacity | ring next | ring count]
+    // then the ring of (reqid, instance << 1 | committed) of the last requests applied, then a bit for
+    // every page, set once one of its keys is written
+    private static final int APPLIED = 8;
+    private static final int CLEAN = 12;
+    private static final int RING_CAPACITY = 16;
+    private static final int RING_NEXT = 20;
+    private static final int RING_COUNT = 24;
+    private static final int HEADER = 64;
+    private static final int BITMAP_LONGS = (1 << (31 - PAGE_BITS)) / Long.SIZE;
+
+    private final FileChannel slot_file;
+    private final AtomicReferenceArray<MappedByteBuffer> chunks;
+    private final MappedByteBuffer meta;
+    private final int ring_capacity;
+    private final int bitmap;
+    private final int recovered_instance;
+
+    // ring_capacity is how many request outcomes are kept, as many as the commit index retains
+    public MappedKeyValueStore(Path slot_path, Path meta_path, int ring_capacity) throws IOException {
+        super(false);
+        this.ring_capacity = ring_capacity;
+        this.bitmap = HEADER + ring_capacity * Long.BYTES;
+        long meta_size = this.bitmap + (long) BITMAP_LONGS * Long.BYTES;
+        try (FileChannel meta_file = FileChannel.open(meta_path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            boolean existed = meta_file.size() == meta_size;
+            // the mapping stays valid once the channel is closed
+            this.meta = meta_file.map(FileChannel.MapMode.READ_WRITE, 0, meta_size);
+            if (existed && this.meta.getInt(0) == MAGIC && this.meta.getInt(4) == FORMAT
+                    && this.meta.getInt(RING_CAPACITY) == ring_capacity && this.meta.getInt(CLEAN) == 1) {
+                this.recovered_instance = this.meta.getInt(APPLIED);
+            } else {
+                this.recovered_instance = -1;
+            }
+        }
+        this.slot_file = FileChannel.open(slot_path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (this.recovered_instance < 0) {
+            // an instance was cut half way (or there is nothing yet): start from an empty store
+            this.slot_file.truncate(0);
+            for (int i = 0; i < meta_size; i++) {
+                this.meta.put(i, (byte) 0);
+            }
+            this.meta.putInt(0, MAGIC);
+            this.meta.putInt(4, FORMAT);
+            this.meta.putInt(RING_CAPACITY, ring_capacity);
+            this.meta.putInt(CLEAN, 1);
+        }
+        this.chunks = new AtomicReferenceArray<>(CHUNKS);
+        long size = this.slot_file.size();
+        for (int c = 0; c < CHUNKS && c * CHUNK_BYTES < size; c++) {
+            this.chunks.set(c, mapChunk(c));
+        }
+    }
+
+    private MappedByteBuffer mapChunk(int c) throws IOException {
+        // mapping past the end grows the file, without writing the pages in between
+        return this.slot_file.map(FileChannel.MapMode.READ_WRITE, c * CHUNK_BYTES, CHUNK_BYTES);
+    }
+
+    @Override
+    public long readPacked(int k) {
+        if (k < 0) {
+            return 0L;
+        }
+        MappedByteBuffer chunk = this.chunks.get(k >>> CHUNK_BITS);
+        if (chunk == null) {
+            return 0L;
+        }
+        return (long) LONGS.getAcquire(chunk, (k & (CHUNK_KEYS - 1)) << 3);
+    }
+
+    @Override
+    synchronized public boolean write(int k, int value, int version) {
+        if (k < 0) {
+            return false;
+        }
+        MappedByteBuffer chunk = this.chunks.get(k >>> CHUNK_BITS);
+        if (chunk == null) {
+            try {
+                chunk = mapChunk(k >>> CHUNK_BITS);
+            } catch (IOException e) {
+                throw new IllegalStateException("cannot map the store file: " + e.getMessage(), e);
+            }
+            this.chunks.set(k >>> CHUNK_BITS, chunk);
+        }
+        // the page is marked before its first key is written
+        int word = this.bitmap + (k >>> (PAGE_BITS + 6)) * Long.BYTES;
+        long bits = (long) LONGS.get(this.meta, word);
+        long page = 1L << ((k >>> PAGE_BITS) & 63);
+        if ((bits & page) == 0) {
+            LONGS.setRelease(this.meta, word, bits | page);
+        }
+        if (hasViews()) {
+            preserve(k, (long) LONGS.getAcquire(chunk, (k & (CHUNK_KEYS - 1)) << 3));
+        }
+        LONGS.setRelease(chunk, (k & (CHUNK_KEYS - 1)) << 3, pack(value, version));
+        markWritten(k);
+        return true;
+    }
+
+    // calls the consumer with the key and slot of every key not holding (0, 0) in the pages ever
+    // written; writes may go on meanwhile
+    private void walkWritten(EntryConsumer consumer) throws IOException {
+        for (int w = 0; w < BITMAP_LONGS; w++) {
+            long bits = (long) LONGS.getAcquire(this.meta, this.bitmap + w * Long.BYTES);
+            while (bits != 0L) {
+                int first = (w * Long.SIZE + Long.numberOfTrailingZeros(bits)) << PAGE_BITS;
+                bits &= bits - 1;
+                MappedByteBuffer chunk = this.chunks.get(first >>> CHUNK_BITS);
+                int offset = first & (CHUNK_KEYS - 1);
+                for (int i = offset; chunk != null && i < offset + (1 << PAGE_BITS); i++) {
+                    long slot = (long) LONGS.getAcquire(chunk, i << 3);
+                    if (slot != 0L) {
+                        consumer.accept(first - offset + i, slot);
+                    }
+                }
+            }
+        }
+    }
+
+    // number of keys not holding (0, 0); walks the pages ever written
+    @Override
+    synchronized public int getSize() {
+        int[] entries = new int[1];
+        try {
+            walkWritten((key, slot) -> entries[0]++);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return entries[0];
+    }
+
+    @Override
+    synchronized public View freeze() {
+        return openView(this::walkWritten);
+    }
+
+    @Override
+    synchronized public int[][] copyEntries() {
+        int entries = getSize();
+        int[] keys = new int[entries];
+        int[] values = new int[entries];
+        int[] versions = new int[entries];
+        int[] e = new int[1];
+        try {
+            walkWritten((key, slot) -> {
+                keys[e[0]] = key;
+                values[e[0]] = valueOf(slot);
+                versions[e[0]] = versionOf(slot);
+                e[0]++;
+            });
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return new int[][] { keys, values, versions };
+    }
+
+    // unlike the heap store, single-key readers may see the old and the new content mixed while it is
+    // installed (readKeys does not); a snapshot is only installed on a replica that is behind. Only the
+    // pages ever written are cleared, and then marked unwritten
+    @Override
+    synchronized public void install(int[] snapshot_keys, int[] snapshot_values, int[] snapshot_versions) {
+        // the slots are replaced in place, a view being copied would mix both contents
+        invalidateViews();
+        beginPublish();
+        try {
+            walkWritten((key, slot) -> LONGS.setRelease(this.chunks.get(key >>> CHUNK_BITS),
+                    (key & (CHUNK_KEYS - 1)) << 3, 0L));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        for (int w = 0; w < BITMAP_LONGS; w++) {
+            LONGS.setRelease(this.meta, this.bitmap + w * Long.BYTES, 0L);
+        }
+        for (int e = 0; e < snapshot_keys.length; e++) {
+            write(snapshot_keys[e], snapshot_values[e], snapshot_versions[e]);
+        }
+        endPublish();
+        markAllWritten();
+    }
+
+    @Override
+    public int getRecoveredInstance() {
+        return this.recovered_instance;
+    }
+
+    @Override
+    public void recoverCommits(CommitIndex index) {
+        int next = this.meta.getInt(RING_NEXT);
+        int count = this.meta.getInt(RING_COUNT);
+        for (int i = 0; i < count; i++) {
+            int position = Math.floorMod(next - count + i, this.ring_capacity);
+            long entry = this.meta.getLong(HEADER + position * Long.BYTES);
+            int outcome = (int) entry;
+            index.record((int) (entry >> 32), outcome >>> 1, (outcome & 1) == 1);
+        }
+    }
+
+    @Override
+    public void markDirty() {
+        this.meta.putInt(CLEAN, 0);
+    }
+
+    @Override
+    public void markApplied(int instance) {
+        this.meta.putInt(APPLIED, instance);
+        this.meta.putInt(CLEAN, 1);
+    }
+
+    @Override
+    public void logCommit(int reqId, int instance, boolean committed) {
+        int next = this.meta.getInt(RING_NEXT);
+        int outcome = (instance << 1) | (committed ? 1 : 0);
+        this.meta.putLong(HEADER + next * Long.BYTES, ((long) reqId << 32) | (outcome & 0xFFFFFFFFL));
+        this.meta.putInt(RING_NEXT, (next + 1) % this.ring_capacity);
+        this.meta.putInt(RING_COUNT, Math.min(this.meta.getInt(RING_COUNT) + 1, this.ring_capacity));
+    }
+}
@@ -1,17 +1,26 @@
 package dadkvs.server;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class PaxosState {
     private int currentRoundNumber;
     private int currentReqId;
+    private List<Integer> currentBatch; // all the reqids of the value, currentReqId is the first of them
     private int readTs; // read_ts -> when we do PROMISE(n = roundNumber), we need to store the roundNumber of the last leader that we promised to
     private int writeTs; // write_ts -> when we accept a value, we store the roundNumber of the leader who we accepted the value from
+    private int currentOvertake; // part of the value: how many instances right before this one the batch may be applied ahead of
+    private int retries; // extra rounds the proposer needed for this instance
     //int previousAcceptedReqId; // the reqId that was accepted
 
     public PaxosState(int currentRoundNumber, int currentReqId, int readTs, int writeTs) {
         this.currentRoundNumber = currentRoundNumber;
         this.currentReqId = currentReqId;
+        this.currentBatch = new ArrayList<>();
         this.readTs = readTs;
         this.writeTs = writeTs;
+        this.currentOvertake = 0;
+        this.retries = 0;
 
         /* // create entry on the learn counter map
         LearnState learnState = new LearnState(currentReqId, paxosCounter, currentRoundNumber);
@@ -31,6 +40,19 @@ public class PaxosState {
         this.currentReqId = currentReqId;
     }
 
+    public void setCurrentBatch(List<Integer> currentBatch) {
+        this.currentBatch = new ArrayList<>(currentBatch);
+        this.currentReqId = currentBatch.isEmpty() ? -1 : currentBatch.get(0);
+    }
+
+    public void setCurrentOvertake(int currentOvertake) {
+        this.currentOvertake = currentOvertake;
+    }
+
+    public int getCurrentOvertake() {
+        return currentOvertake;
+    }
+
     public void setReadTs(int readTs) {
         this.readTs = readTs;
     }
@@ -43,6 +65,10 @@ public class PaxosState {
         return currentReqId;
     }
 
+    public List<Integer> getCurrentBatch() {
+        return currentBatch;
+    }
+
     public int getReadTs() {
         return readTs;
     }
@@ -51,4 +77,20 @@ public class PaxosState {
         return writeTs;
     }
 
+    // the promise and the accepted value as they are now, for a reply built after the lock is released
+    public PaxosState copy() {
+        PaxosState copy = new PaxosState(currentRoundNumber, currentReqId, readTs, writeTs);
+        copy.setCurrentBatch(currentBatch);
+        copy.setCurrentOvertake(currentOvertake);
+        return copy;
+    }
+
+    public synchronized void incrementRetries() {
+        this.retries++;
+    }
+
+    public synchronized int getRetries() {
+        return retries;
+    }
+
 }
@@ -0,0 +1,23 @@
+package dadkvs.server;
+
+import java.util.List;
+
+// what a proposer gets decided in one paxos instance: the batch of reqids, in commit order, and
+// how many instances right before this one the batch may be applied ahead of
+class PaxosValue {
+    private final List<Integer> batch;
+    private final int overtake;
+
+    PaxosValue(List<Integer> batch, int overtake) {
+        this.batch = batch;
+        this.overtake = overtake;
+    }
+
+    List<Integer> getBatch() {
+        return batch;
+    }
+
+    int getOvertake() {
+        return overtake;
+    }
+}
@@ -0,0 +1,94 @@
+package dadkvs.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// runs the leader's consensus work (starting batches and every paxos stage after a quorum
+// reply) instead of creating a thread per commit; the sequencer queues at most a bounded number
+// of tasks and makes whoever submits past that wait for room
+public class ProposerExecutor implements Executor {
+	public static final String SEQUENCER = "sequencer";
+	public static final String VIRTUAL = "virtual";
+
+	private final String mode;
+	private final ExecutorService executor;
+	private final AtomicInteger pending; // tasks submitted but not started yet
+	private final AtomicInteger maxPending;
+	private final AtomicLong executed;
+	private volatile Thread sequencerThread;
+
+	public ProposerExecutor(String mode, int capacity) {
+		this.mode = mode;
+		if (VIRTUAL.equals(mode)) {
+			// one virtual thread per task, so blocking in a stage never stalls other instances
+			this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("proposer-", 0).factory());
+		} else {
+			// a single thread runs every stage in submission order, without any lock contention
+			this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<>(Math.max(1, capacity)), task -> {
+						this.sequencerThread = new Thread(task, "proposer-sequencer");
+						return this.sequencerThread;
+					}, this::waitForRoom);
+		}
+		this.pending = new AtomicInteger(0);
+		this.maxPending = new AtomicInteger(0);
+		this.executed = new AtomicLong(0);
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		int depth = this.pending.incrementAndGet();
+		this.maxPending.accumulateAndGet(depth, Math::max);
+		this.executor.execute(() -> {
+			this.pending.decrementAndGet();
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				DadkvsServer.debug(ProposerExecutor.class.getSimpleName(), "Proposer task failed: %s", e.getMessage());
+			} finally {
+				this.executed.incrementAndGet();
+			}
+		});
+	}
+
+	// backpressure for a full sequencer queue: the submitter blocks until the sequencer takes a task,
+	// except the sequencer itself, which cannot wait on its own queue and runs the task right away
+	private void waitForRoom(Runnable task, ThreadPoolExecutor pool) {
+		if (pool.isShutdown()) {
+			throw new RejectedExecutionException("proposer executor is shut down");
+		}
+		if (Thread.currentThread() == this.sequencerThread) {
+			task.run();
+			return;
+		}
+		try {
+			pool.getQueue().put(task);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("interrupted waiting for the proposer queue", e);
+		}
+	}
+
+	public String getMode() {
+		return this.mode;
+	}
+
+	public int getQueueDepth() {
+		return this.pending.get();
+	}
+
+	public int getMaxQueueDepth() {
+		return this.maxPending.get();
+	}
+
+	public long getExecutedTasks() {
+		return this.executed.get();
+	}
+}
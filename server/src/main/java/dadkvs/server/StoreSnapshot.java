@@ -0,0 +1,319 @@
+package dadkvs.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// the key value store as it was right after a paxos instance was applied, together with the
+// outcome of the requests applied most recently (so they are not applied again). A delta only holds
+// the pages of keys written since the previous checkpoint (their whole content) and the requests
+// applied since; merged in order over a full snapshot, the deltas give the store at the last one.
+// A snapshot taken from a running store holds a frozen view of it instead of the entries, they are
+// streamed from the view when it is written
+public class StoreSnapshot {
+	private static final int MAGIC = 0x444b5653; // "DKVS"
+	// format 1 also held the size of the (then fixed) store
+	private static final int FORMAT_SIZED = 1;
+	private static final int FORMAT = 2;
+	private static final int FORMAT_DELTA = 3;
+	// the entries without their count, ended by key -1
+	private static final int FORMAT_STREAMED = 4;
+
+	private final int instance;
+	// the pages a delta replaces, null in a full snapshot
+	private final int[] pages;
+	private final int[] keys;
+	private final int[] values;
+	private final int[] versions;
+	private final int[] reqIds;
+	private final boolean[] outcomes;
+	// where the entries of a snapshot taken from a running store come from, null once read back
+	private final KeyValueStore.View view;
+	// entries written from the view
+	private int streamed;
+
+	public StoreSnapshot(int instance, int[] keys, int[] values, int[] versions, int[] reqIds, boolean[] outcomes) {
+		this(instance, null, keys, values, versions, reqIds, outcomes);
+	}
+
+	public StoreSnapshot(int instance, int[] pages, int[] keys, int[] values, int[] versions, int[] reqIds,
+			boolean[] outcomes) {
+		this.instance = instance;
+		this.pages = pages;
+		this.keys = keys;
+		this.values = values;
+		this.versions = versions;
+		this.reqIds = reqIds;
+		this.outcomes = outcomes;
+		this.view = null;
+	}
+
+	// the entries are only in the view; it is closed once the snapshot is written (or released)
+	public StoreSnapshot(int instance, KeyValueStore.View view, int[] reqIds, boolean[] outcomes) {
+		this.instance = instance;
+		this.pages = null;
+		this.keys = null;
+		this.values = null;
+		this.versions = null;
+		this.reqIds = reqIds;
+		this.outcomes = outcomes;
+		this.view = view;
+	}
+
+	public int getInstance() {
+		return instance;
+	}
+
+	public boolean isDelta() {
+		return pages != null;
+	}
+
+	public int[] getPages() {
+		return pages;
+	}
+
+	// the keys in it, once written if it streams from a view
+	public int getEntryCount() {
+		return this.view != null ? this.streamed : this.keys.length;
+	}
+
+	// the entries of a snapshot streamed from a view are only in what it writes
+	public int[] getKeys() {
+		return keys;
+	}
+
+	public int[] getValues() {
+		return values;
+	}
+
+	public int[] getVersions() {
+		return versions;
+	}
+
+	public int[] getReqIds() {
+		return reqIds;
+	}
+
+	public boolean[] getOutcomes() {
+		return outcomes;
+	}
+
+	// [magic | format | instance | n entries | (key, value, version) * n | n requests |
+	// (reqid, outcome) * n]; only the keys that do not hold (0, 0) are in it. A delta has
+	// [n pages | page * n] right after the instance; one streamed from a view has no n entries, and
+	// a key -1 after its last entry. Written once if it streams from a view
+	public void writeTo(OutputStream stream) throws IOException {
+		DataOutputStream out = new DataOutputStream(stream);
+		out.writeInt(MAGIC);
+		out.writeInt(this.view != null ? FORMAT_STREAMED : isDelta() ? FORMAT_DELTA : FORMAT);
+		out.writeInt(this.instance);
+		if (isDelta()) {
+			out.writeInt(this.pages.length);
+			for (int page : this.pages) {
+				out.writeInt(page);
+			}
+		}
+		if (this.view != null) {
+			try {
+				this.view.forEach((key, slot) -> {
+					out.writeInt(key);
+					out.writeInt(KeyValueStore.valueOf(slot));
+					out.writeInt(KeyValueStore.versionOf(slot));
+					this.streamed++;
+				});
+			} finally {
+				this.view.close();
+			}
+			out.writeInt(-1);
+		} else {
+			out.writeInt(this.keys.length);
+			for (int e = 0; e < this.keys.length; e++) {
+				out.writeInt(this.keys[e]);
+				out.writeInt(this.values[e]);
+				out.writeInt(this.versions[e]);
+			}
+		}
+		out.writeInt(this.reqIds.length);
+		for (int i = 0; i < this.reqIds.length; i++) {
+			out.writeInt(this.reqIds[i]);
+			out.writeBoolean(this.outcomes[i]);
+		}
+		out.flush();
+	}
+
+	// closes the view of a snapshot that is not going to be written
+	public void release() {
+		if (this.view != null) {
+			this.view.close();
+		}
+	}
+
+	public static StoreSnapshot readFrom(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(stream);
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not a store snapshot");
+		}
+		int format = in.readInt();
+		if (format != FORMAT && format != FORMAT_SIZED && format != FORMAT_DELTA && format != FORMAT_STREAMED) {
+			throw new IOException("unknown store snapshot format " + format);
+		}
+		int instance = in.readInt();
+		if (format == FORMAT_SIZED) {
+			in.readInt();
+		}
+		int[] pages = null;
+		if (format == FORMAT_DELTA) {
+			pages = new int[in.readInt()];
+			for (int p = 0; p < pages.length; p++) {
+				pages[p] = in.readInt();
+			}
+		}
+		int[] keys;
+		int[] values;
+		int[] versions;
+		if (format == FORMAT_STREAMED) {
+			int entries = 0;
+			keys = new int[1024];
+			values = new int[1024];
+			versions = new int[1024];
+			for (int key = in.readInt(); key != -1; key = in.readInt()) {
+				if (entries == keys.length) {
+					keys = Arrays.copyOf(keys, entries * 2);
+					values = Arrays.copyOf(values, entries * 2);
+					versions = Arrays.copyOf(versions, entries * 2);
+				}
+				keys[entries] = key;
+				values[entries] = in.readInt();
+				versions[entries] = in.readInt();
+				entries++;
+			}
+			keys = Arrays.copyOf(keys, entries);
+			values = Arrays.copyOf(values, entries);
+			versions = Arrays.copyOf(versions, entries);
+		} else {
+			int entries = in.readInt();
+			keys = new int[entries];
+			values = new int[entries];
+			versions = new int[entries];
+			for (int e = 0; e < entries; e++) {
+				keys[e] = in.readInt();
+				values[e] = in.readInt();
+				versions[e] = in.readInt();
+			}
+		}
+		int requests = in.readInt();
+		int[] reqIds = new int[requests];
+		boolean[] outcomes = new boolean[requests];
+		for (int i = 0; i < requests; i++) {
+			reqIds[i] = in.readInt();
+			outcomes[i] = in.readBoolean();
+		}
+		return new StoreSnapshot(instance, pages, keys, values, versions, reqIds, outcomes);
+	}
+
+	// [length | crc32 | encoded snapshot], so deltas can be appended to one file and a torn last one
+	// is told apart
+	public void writeFramedTo(OutputStream stream) throws IOException {
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		writeTo(encoded);
+		CRC32 crc = new CRC32();
+		crc.update(encoded.toByteArray());
+		DataOutputStream out = new DataOutputStream(stream);
+		out.writeInt(encoded.size());
+		out.writeLong(crc.getValue());
+		encoded.writeTo(out);
+		out.flush();
+	}
+
+	// the next framed snapshot, null at the end of the stream or at a torn one
+	public static StoreSnapshot readFramedFrom(DataInputStream in) throws IOException {
+		byte[] encoded;
+		long checksum;
+		try {
+			int length = in.readInt();
+			checksum = in.readLong();
+			if (length < 0) {
+				return null;
+			}
+			encoded = in.readNBytes(length);
+			if (encoded.length < length) {
+				return null;
+			}
+		} catch (EOFException e) {
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(encoded);
+		if (crc.getValue() != checksum) {
+			return null;
+		}
+		return readFrom(new ByteArrayInputStream(encoded));
+	}
+
+	// the store after the last delta: every page comes from the last delta holding it, or else from the
+	// full snapshot; the requests are the snapshot's followed by those of every delta, in order
+	public static StoreSnapshot merge(StoreSnapshot full, List<StoreSnapshot> deltas) {
+		if (deltas.isEmpty()) {
+			return full;
+		}
+		// the delta each page is taken from, the newest one first
+		Map<Integer, StoreSnapshot> source = new HashMap<>();
+		for (int d = deltas.size() - 1; d >= 0; d--) {
+			for (int page : deltas.get(d).pages) {
+				source.putIfAbsent(page, deltas.get(d));
+			}
+		}
+		int entries = 0;
+		int requests = full.reqIds.length;
+		for (int e = 0; e < full.keys.length; e++) {
+			entries += source.containsKey(full.keys[e] >>> KeyValueStore.PAGE_BITS) ? 0 : 1;
+		}
+		for (StoreSnapshot delta : deltas) {
+			for (int e = 0; e < delta.keys.length; e++) {
+				entries += source.get(delta.keys[e] >>> KeyValueStore.PAGE_BITS) == delta ? 1 : 0;
+			}
+			requests += delta.reqIds.length;
+		}
+		int[] keys = new int[entries];
+		int[] values = new int[entries];
+		int[] versions = new int[entries];
+		int[] reqIds = new int[requests];
+		boolean[] outcomes = new boolean[requests];
+		int e = 0;
+		for (int i = 0; i < full.keys.length; i++) {
+			if (!source.containsKey(full.keys[i] >>> KeyValueStore.PAGE_BITS)) {
+				keys[e] = full.keys[i];
+				values[e] = full.values[i];
+				versions[e] = full.versions[i];
+				e++;
+			}
+		}
+		System.arraycopy(full.reqIds, 0, reqIds, 0, full.reqIds.length);
+		System.arraycopy(full.outcomes, 0, outcomes, 0, full.outcomes.length);
+		int r = full.reqIds.length;
+		for (StoreSnapshot delta : deltas) {
+			for (int i = 0; i < delta.keys.length; i++) {
+				if (source.get(delta.keys[i] >>> KeyValueStore.PAGE_BITS) == delta) {
+					keys[e] = delta.keys[i];
+					values[e] = delta.values[i];
+					versions[e] = delta.versions[i];
+					e++;
+				}
+			}
+			System.arraycopy(delta.reqIds, 0, reqIds, r, delta.reqIds.length);
+			System.arraycopy(delta.outcomes, 0, outcomes, r, delta.outcomes.length);
+			r += delta.reqIds.length;
+		}
+		return new StoreSnapshot(deltas.get(deltas.size() - 1).instance, keys, values, versions, reqIds, outcomes);
+	}
+}
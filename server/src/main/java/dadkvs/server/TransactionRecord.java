@@ -1,98 +1,95 @@
 package dadkvs.server;
 
+import java.util.List;
+
+import dadkvs.DadkvsMain;
+
+// the keys a transaction read, with the version each one was read at, and the keys it writes with
+// their values; the writes are applied in order, so a key written twice ends with the last value
 public class TransactionRecord {
     private int timestamp;
-    private int read1_key;
-    private int read1_version;
-    private int read2_key;
-    private int read2_version;
-    private int prepare_key;
-    private int prepare_value;
+    private int[] read_keys;
+    private int[] read_versions;
+    private int[] write_keys;
+    private int[] write_values;
 
     public TransactionRecord() {
-        this.read1_key = 0;
-        this.read1_version = 0;
-        this.read2_key = 0;
-        this.read2_version = 0;
-        this.prepare_key = 0;
-        this.prepare_value = 0;
-        this.timestamp = -1;
+        this(0, 0, 0, 0, 0, 0);
     }
 
     public TransactionRecord(int key1, int v1, int key2, int v2, int wkey, int wval) {
-        this.read1_key = key1;
-        this.read1_version = v1;
-        this.read2_key = key2;
-        this.read2_version = v2;
-        this.prepare_key = wkey;
-        this.prepare_value = wval;
-        this.timestamp = -1;
+        this(key1, v1, key2, v2, wkey, wval, -1);
     }
 
     public TransactionRecord(int key1, int v1, int key2, int v2, int wkey, int wval, int ts) {
-        this.read1_key = key1;
-        this.read1_version = v1;
-        this.read2_key = key2;
-        this.read2_version = v2;
-        this.prepare_key = wkey;
-        this.prepare_value = wval;
-        this.timestamp = ts;
-    }
-
-    // Getter and Setter methods for all fields
-    public int getTimestamp() {
-        return timestamp;
-    }
-
-    public void setTimestamp(int timestamp) {
-        this.timestamp = timestamp;
+        this(new int[] { key1, key2 }, new int[] { v1, v2 }, new int[] { wkey }, new int[] { wval }, ts);
     }
 
-    public int getRead1Key() {
-        return read1_key;
-    }
-
-    public void setRead1Key(int read1_key) {
-        this.read1_key = read1_key;
+    public TransactionRecord(int[] read_keys, int[] read_versions, int[] write_keys, int[] write_values, int ts) {
+        this.read_keys = read_keys;
+        this.read_versions = read_versions;
+        this.write_keys = write_keys;
+        this.write_values = write_values;
+        this.timestamp = ts;
     }
 
-    public int getRead1Version() {
-        return read1_version;
+    // the transaction of a commit request: its repeated fields if it has write keys, otherwise the
+    // two reads and the write of the fixed ones
+    public static TransactionRecord of(DadkvsMain.CommitRequest request, int ts) {
+        if (request.getWritekeysCount() == 0) {
+            return new TransactionRecord(request.getKey1(), request.getVersion1(), request.getKey2(),
+                    request.getVersion2(), request.getWritekey(), request.getWriteval(), ts);
+        }
+        return new TransactionRecord(toArray(request.getReadkeysList()), toArray(request.getReadversionsList()),
+                toArray(request.getWritekeysList()), toArray(request.getWritevalsList()), ts);
     }
 
-    public void setRead1Version(int read1_version) {
-        this.read1_version = read1_version;
+    // a request whose repeated fields do not pair a version with every read key and a value with every
+    // write key is not a transaction
+    public static boolean isWellFormed(DadkvsMain.CommitRequest request) {
+        return request.getReadkeysCount() == request.getReadversionsCount()
+                && request.getWritekeysCount() == request.getWritevalsCount()
+                && (request.getWritekeysCount() > 0 || request.getReadkeysCount() == 0);
     }
 
-    public int getRead2Key() {
-        return read2_key;
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
     }
 
-    public void setRead2Key(int read2_key) {
-        this.read2_key = read2_key;
+    public int getTimestamp() {
+        return timestamp;
     }
 
-    public int getRead2Version() {
-        return read2_version;
+    public void setTimestamp(int timestamp) {
+        this.timestamp = timestamp;
     }
 
-    public void setRead2Version(int read2_version) {
-        this.read2_version = read2_version;
+    public int[] getReadKeys() {
+        return read_keys;
     }
 
-    public int getPrepareKey() {
-        return prepare_key;
+    public int[] getReadVersions() {
+        return read_versions;
     }
 
-    public void setPrepareKey(int prepare_key) {
-        this.prepare_key = prepare_key;
+    public int[] getWriteKeys() {
+        return write_keys;
     }
 
-    public int getPrepareValue() {
-        return prepare_value;
+    public int[] getWriteValues() {
+        return write_values;
     }
 
-    public void setPrepareValue(int prepare_value) {
-        this.prepare_value = prepare_value;
+    public boolean writes(int key) {
+        for (int write_key : write_keys) {
+            if (write_key == key) {
+                return true;
+            }
+        }
+        return false;
     }
 }
@@ -0,0 +1,95 @@
+package dadkvs.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class AcceptorLogTest {
+
+	private static Path writeLog() throws IOException {
+		Path path = Files.createTempFile("acceptor", ".log");
+		path.toFile().deleteOnExit();
+		AcceptorLog log = new AcceptorLog(AcceptorLog.SYNC, path);
+		log.replay();
+		log.promise(1, 3).join();
+		log.accept(1, 3, List.of(10, 11), 0).join();
+		log.accept(2, 3, List.of(12), 1).join();
+		return path;
+	}
+
+	@Test
+	public void replayDropsATruncatedLastRecord() throws IOException {
+		Path path = writeLog();
+		long complete = Files.size(path);
+		// the last record loses its last reqid
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			channel.truncate(complete - 2);
+		}
+		AcceptorLog log = new AcceptorLog(AcceptorLog.SYNC, path);
+		List<AcceptorLog.Record> records = log.replay();
+		assertEquals(2, records.size());
+		assertEquals(AcceptorLog.ACCEPT, records.get(1).getType());
+		assertEquals(List.of(10, 11), records.get(1).getBatch());
+		// the log goes on right after the last complete record
+		log.accept(2, 4, List.of(13), 0).join();
+		records = new AcceptorLog(AcceptorLog.SYNC, path).replay();
+		assertEquals(3, records.size());
+		assertEquals(4, records.get(2).getRound());
+		assertEquals(List.of(13), records.get(2).getBatch());
+	}
+
+	@Test
+	public void replayDropsARecordWhoseBatchDoesNotFit() throws IOException {
+		Path path = writeLog();
+		try (OutputStream out = Files.newOutputStream(path, StandardOpenOption.APPEND)) {
+			DataOutputStream data = new DataOutputStream(out);
+			data.writeByte(AcceptorLog.ACCEPT);
+			data.writeInt(3);
+			data.writeInt(3);
+			data.writeInt(0);
+			data.writeInt(Integer.MAX_VALUE);
+			data.writeInt(14);
+			data.flush();
+		}
+		List<AcceptorLog.Record> records = new AcceptorLog(AcceptorLog.SYNC, path).replay();
+		assertEquals(3, records.size());
+		assertEquals(2, records.get(2).getInstance());
+	}
+
+	@Test
+	public void replayAfterCompactionRestoresTheStablePromiseFirst() throws IOException {
+		Path path = Files.createTempFile("acceptor", ".log");
+		path.toFile().deleteOnExit();
+		AcceptorLog log = new AcceptorLog(AcceptorLog.ASYNC, path);
+		log.replay();
+		// a stable leader of round 7 from instance 1 on, then enough accepts under it to compact
+		log.promiseAll(1, 7).join();
+		for (int instance = 1; instance < 10000; instance++) {
+			log.accept(instance, 7, List.of(instance), 0).join();
+		}
+		log.compact(9990);
+		log.accept(10000, 7, List.of(10000), 0).join();
+
+		List<AcceptorLog.Record> records = new AcceptorLog(AcceptorLog.ASYNC, path).replay();
+		assertEquals(12, records.size());
+		assertEquals(AcceptorLog.TRUNCATED, records.get(0).getType());
+		assertEquals(9990, records.get(0).getInstance());
+		// replayed before the accepts of its round, so they do not make it look already promised
+		assertEquals(AcceptorLog.PROMISE_ALL, records.get(1).getType());
+		assertEquals(1, records.get(1).getInstance());
+		assertEquals(7, records.get(1).getRound());
+		for (int r = 2; r < records.size(); r++) {
+			assertEquals(AcceptorLog.ACCEPT, records.get(r).getType());
+			assertEquals(9989 + r, records.get(r).getInstance());
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package dadkvs.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class ApplyEngineTest {
+	private static final int KEYS = 32;
+
+	private static TransactionRecord tx(int[] reads, int[] writes) {
+		int[] versions = new int[reads.length];
+		int[] values = new int[writes.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = writes[i] + 1;
+		}
+		return new TransactionRecord(reads, versions, writes, values, 1);
+	}
+
+	@Test
+	public void transactionsOnDisjointKeysShareOneWave() {
+		List<TransactionRecord> run = List.of(
+				tx(new int[] { 1 }, new int[] { 2 }),
+				tx(new int[] { 3 }, new int[] { 4, 5 }),
+				tx(new int[] { 1, 6 }, new int[] { 7 }));
+		assertEquals(List.of(List.of(0, 1, 2)), ApplyEngine.schedule(run));
+	}
+
+	@Test
+	public void conflictingTransactionsGoInLaterWaves() {
+		List<TransactionRecord> run = List.of(
+				tx(new int[] { 1 }, new int[] { 2 }),
+				// reads what the first one writes
+				tx(new int[] { 2 }, new int[] { 3 }),
+				// writes what the first one reads
+				tx(new int[] { 4 }, new int[] { 1 }),
+				// writes, among others, what the second one writes
+				tx(new int[0], new int[] { 8, 3 }),
+				// touches nothing written before it
+				tx(new int[] { 9 }, new int[] { 10 }));
+		assertEquals(List.of(List.of(0, 4), List.of(1, 2), List.of(3)), ApplyEngine.schedule(run));
+	}
+
+	@Test
+	public void parallelApplyMatchesSerialApply() {
+		Random rnd = new Random(42);
+		for (int round = 0; round < 50; round++) {
+			List<TransactionRecord> run = new ArrayList<>();
+			for (int t = 0; t < 200; t++) {
+				int[] reads = new int[rnd.nextInt(4)];
+				int[] versions = new int[reads.length];
+				for (int i = 0; i < reads.length; i++) {
+					reads[i] = rnd.nextInt(KEYS);
+					// a key written in this run has version 1, so only some of the reads still hold
+					versions[i] = rnd.nextInt(2);
+				}
+				int[] writes = new int[1 + rnd.nextInt(3)];
+				int[] values = new int[writes.length];
+				for (int i = 0; i < writes.length; i++) {
+					writes[i] = 1 + rnd.nextInt(KEYS - 1);
+					values[i] = rnd.nextInt();
+				}
+				run.add(new TransactionRecord(reads, versions, writes, values, 1));
+			}
+			KeyValueStore serialStore = new KeyValueStore();
+			KeyValueStore parallelStore = new KeyValueStore();
+			boolean[] serial = new ApplyEngine(1).apply(run, serialStore);
+			boolean[] parallel = new ApplyEngine(4).apply(run, parallelStore);
+			assertArrayEquals(serial, parallel);
+			for (int k = 0; k < KEYS; k++) {
+				assertEquals(serialStore.readPacked(k), parallelStore.readPacked(k));
+			}
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package dadkvs.util;
+
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class ExponentialBackoff {
+
+    private final Random rnd;
+    private final long baseDelay;
+    private final long maxDelay;
+    private int failures; // consecutive failures since the last success
+
+    public ExponentialBackoff(long seed, long baseDelay, long maxDelay) {
+        // each replica uses its own seed so that dueling proposers do not retry in lockstep
+        this.rnd = new Random(seed);
+        this.baseDelay = Math.max(1, baseDelay);
+        this.maxDelay = Math.max(this.baseDelay, maxDelay);
+        this.failures = 0;
+    }
+
+    // full jitter: a random delay between 1 and min(max, base * 2^failures)
+    public synchronized long nextDelay() {
+        long ceiling = this.baseDelay << Math.min(this.failures, 30);
+        if (ceiling <= 0 || ceiling > this.maxDelay) {
+            ceiling = this.maxDelay;
+        }
+        this.failures++;
+        return 1 + (long) (this.rnd.nextDouble() * ceiling);
+    }
+
+    // completes after the next delay, without holding a thread while waiting
+    public CompletableFuture<Void> backoffAsync() {
+        long delay = nextDelay();
+        return CompletableFuture.runAsync(() -> {
+        }, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS));
+    }
+
+    public synchronized void reset() {
+        this.failures = 0;
+    }
+
+    public synchronized int getFailures() {
+        return this.failures;
+    }
+}
@@ -23,6 +23,12 @@ public class FreezeMode {
     System.out.println("Unfreezing server...");
   }
 
+  public boolean isFrozen() {
+    synchronized (this) {
+      return this.freeze;
+    }
+  }
+
   public void waitUntilUnfreezed() {
     synchronized (this) {
       while (this.freeze) {
@@ -0,0 +1,118 @@
+package dadkvs.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import io.grpc.stub.StreamObserver;
+
+// non-blocking counterpart of GenericResponseCollector: instead of parking a thread in
+// waitForTarget, the result future completes as soon as the outcome is known
+public class QuorumCollector<T> {
+    private final int total;
+    private final int quorum;
+    private final Predicate<T> accepts;
+    private final ArrayList<T> accepted;
+    private final ArrayList<T> rejected;
+    private int failed;
+    private Consumer<T> listener;
+    private final CompletableFuture<QuorumResult<T>> result;
+
+    public QuorumCollector(int total, int quorum, Predicate<T> accepts) {
+        this.total = total;
+        this.quorum = quorum;
+        this.accepts = accepts;
+        this.accepted = new ArrayList<>();
+        this.rejected = new ArrayList<>();
+        this.failed = 0;
+        this.result = new CompletableFuture<>();
+    }
+
+    // one observer per target
+    public StreamObserver<T> newObserver() {
+        return new StreamObserver<T>() {
+            private boolean done = false;
+
+            @Override
+            public void onNext(T value) {
+                if (!done) {
+                    done = true;
+                    addResponse(value);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                System.err.println("[QuorumCollector] Error occurred: " + t.getMessage());
+                if (!done) {
+                    done = true;
+                    addNoResponse();
+                }
+            }
+
+            @Override
+            public void onCompleted() {
+                if (!done) {
+                    done = true;
+                    addNoResponse();
+                }
+            }
+        };
+    }
+
+    // called for every reply, including the ones that arrive after the outcome is known
+    synchronized public QuorumCollector<T> onResponse(Consumer<T> listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    synchronized public void addResponse(T resp) {
+        if (listener != null) {
+            listener.accept(resp);
+        }
+        if (accepts.test(resp)) {
+            accepted.add(resp);
+        } else {
+            rejected.add(resp);
+        }
+        checkOutcome();
+    }
+
+    synchronized public void addNoResponse() {
+        failed++;
+        checkOutcome();
+    }
+
+    // reached with a quorum of accepts, failed once enough rejects/errors make it impossible
+    private void checkOutcome() {
+        if (accepted.size() >= quorum) {
+            complete(true);
+        } else if (rejected.size() + failed > total - quorum) {
+            complete(false);
+        }
+    }
+
+    private void complete(boolean reached) {
+        if (!result.isDone()) {
+            result.complete(new QuorumResult<>(reached, new ArrayList<>(accepted), new ArrayList<>(rejected)));
+        }
+    }
+
+    public CompletableFuture<QuorumResult<T>> getResult() {
+        return result;
+    }
+
+    // same as getResult, but gives up (not reached) if the outcome is still unknown after timeout ms
+    public CompletableFuture<QuorumResult<T>> getResult(long timeout) {
+        if (timeout > 0) {
+            CompletableFuture.delayedExecutor(timeout, TimeUnit.MILLISECONDS).execute(() -> {
+                synchronized (this) {
+                    complete(false);
+                }
+            });
+        }
+        return result;
+    }
+}
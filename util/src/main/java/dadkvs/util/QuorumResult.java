@@ -0,0 +1,28 @@
+package dadkvs.util;
+
+import java.util.List;
+
+public class QuorumResult<T> {
+    private final boolean reached;
+    private final List<T> accepted;
+    private final List<T> rejected;
+
+    public QuorumResult(boolean reached, List<T> accepted, List<T> rejected) {
+        this.reached = reached;
+        this.accepted = accepted;
+        this.rejected = rejected;
+    }
+
+    // true if the quorum of accepts was reached before it became impossible or timed out
+    public boolean isReached() {
+        return reached;
+    }
+
+    public List<T> getAccepted() {
+        return accepted;
+    }
+
+    public List<T> getRejected() {
+        return rejected;
+    }
+}